@@ -0,0 +1,135 @@
+package es.jodd.client;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Builds the payloads the benchmarks run against.  Everything is generated from a fixed seed so
+ * runs are comparable.
+ *
+ * @author aholinch
+ *
+ */
+public class BenchFixtures
+{
+	public static final String SMALL = "small";
+
+	public static final String LARGE = "large";
+
+	public static final String UNICODE = "unicode";
+
+	private static final String WORDS[] = {"alpha", "bravo", "charlie", "delta", "echo", "foxtrot", "golf", "hotel", "india", "juliet"};
+
+	private static final String UNICODE_WORDS[] = {"caf\u00e9", "na\u00efve", "\u00fcber", "\u65e5\u672c\u8a9e", "\u0440\u0443\u0441\u0441\u043a\u0438\u0439", "\u0627\u0644\u0639\u0631\u0628\u064a\u0629", "\ud83d\ude00", "\u03b1\u03b2\u03b3"};
+
+	/**
+	 * A json doc of the given kind.  Small docs have a handful of fields, large ones a few KB of
+	 * text and unicode ones are mostly non ASCII.
+	 *
+	 * @param kind
+	 * @param seed
+	 * @return
+	 */
+	public static String doc(String kind, int seed)
+	{
+		Random r = new Random(seed);
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"id\":").append(seed);
+		sb.append(",\"name\":\"").append(text(r, 3, false)).append('"');
+		sb.append(",\"count\":").append(r.nextInt(100000));
+		sb.append(",\"score\":").append(r.nextDouble());
+
+		if(LARGE.equals(kind))
+		{
+			for(int i=0; i<20; i++)
+			{
+				sb.append(",\"field").append(i).append("\":\"").append(text(r, 30, false)).append('"');
+			}
+			sb.append(",\"tags\":[");
+			for(int i=0; i<20; i++)
+			{
+				if(i > 0) sb.append(',');
+				sb.append('"').append(WORDS[r.nextInt(WORDS.length)]).append('"');
+			}
+			sb.append(']');
+		}
+		else if(UNICODE.equals(kind))
+		{
+			for(int i=0; i<5; i++)
+			{
+				sb.append(",\"text").append(i).append("\":\"").append(text(r, 20, true)).append('"');
+			}
+		}
+
+		sb.append('}');
+		return sb.toString();
+	}
+
+	/**
+	 * A query value of the given kind, with quotes and control chars for the small kind so the
+	 * escaping slow path is taken.
+	 *
+	 * @param kind
+	 * @return
+	 */
+	public static String queryValue(String kind)
+	{
+		Random r = new Random(42);
+		if(LARGE.equals(kind)) return text(r, 200, false);
+		if(UNICODE.equals(kind)) return text(r, 20, true);
+		return "search for \"quoted\" text\twith a tab";
+	}
+
+	/**
+	 * A _search response with the given number of hits, each with a doc of the given kind.
+	 *
+	 * @param hits
+	 * @param kind
+	 * @return
+	 */
+	public static byte[] searchResponse(int hits, String kind)
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"took\":5,\"timed_out\":false,\"_shards\":{\"total\":1,\"successful\":1,\"skipped\":0,\"failed\":0},");
+		sb.append("\"hits\":{\"total\":{\"value\":").append(hits).append(",\"relation\":\"eq\"},\"max_score\":1.0,\"hits\":[");
+		for(int i=0; i<hits; i++)
+		{
+			if(i > 0) sb.append(',');
+			sb.append("{\"_index\":\"bench\",\"_id\":\"doc").append(i).append("\",\"_score\":").append(1.0-i/(double)(hits+1));
+			sb.append(",\"_source\":").append(doc(kind, i)).append('}');
+		}
+		sb.append("]}}");
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * A list of docs of the given kind.
+	 *
+	 * @param num
+	 * @param kind
+	 * @return
+	 */
+	public static List<String> docs(int num, String kind)
+	{
+		List<String> docs = new ArrayList<String>(num);
+		for(int i=0; i<num; i++)
+		{
+			docs.add(doc(kind, i));
+		}
+		return docs;
+	}
+
+	private static String text(Random r, int words, boolean unicode)
+	{
+		StringBuilder sb = new StringBuilder();
+		for(int i=0; i<words; i++)
+		{
+			if(i > 0) sb.append(' ');
+			if(unicode) sb.append(UNICODE_WORDS[r.nextInt(UNICODE_WORDS.length)]);
+			else sb.append(WORDS[r.nextInt(WORDS.length)]);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,82 @@
+package es.jodd.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of assembling _bulk bodies as multiCreateDoc (generated ids) and multiSaveDoc
+ * (given ids) do, and of sizing the batches.
+ *
+ * @author aholinch
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BulkBodyBenchmark
+{
+	@Param({"1000"})
+	public int docs;
+
+	@Param({BenchFixtures.SMALL, BenchFixtures.LARGE, BenchFixtures.UNICODE})
+	public String kind;
+
+	private ElasticClient client;
+
+	private List<String> jsonStrs;
+
+	private List<String> ids;
+
+	@Setup
+	public void setup()
+	{
+		client = new ElasticClient();
+		jsonStrs = BenchFixtures.docs(docs, kind);
+		ids = new ArrayList<String>(docs);
+		for(int i=0; i<docs; i++)
+		{
+			ids.add("id-" + i);
+		}
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		client.close();
+	}
+
+	@Benchmark
+	public String createBody()
+	{
+		return client.bulkBody("bench", jsonStrs, null);
+	}
+
+	@Benchmark
+	public String saveBody()
+	{
+		return client.bulkBody("bench", jsonStrs, ids);
+	}
+
+	@Benchmark
+	public int batchEnd()
+	{
+		return client.batchEnd("bench", jsonStrs, ids, 0);
+	}
+}
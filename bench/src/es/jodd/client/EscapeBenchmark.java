@@ -0,0 +1,67 @@
+package es.jodd.client;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of escapeJSON and of building a match query body around the escaped value.  Setup
+ * fails if escapeJSON no longer matches the old escaper, see EscapeCheck.
+ *
+ * @author aholinch
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EscapeBenchmark
+{
+	@Param({BenchFixtures.SMALL, BenchFixtures.LARGE, BenchFixtures.UNICODE})
+	public String kind;
+
+	private ElasticClient client;
+
+	private String value;
+
+	@Setup
+	public void setup()
+	{
+		client = new ElasticClient();
+		value = BenchFixtures.queryValue(kind);
+
+		// a faster escaper is no use if it writes something else
+		EscapeCheck.verify(client, 20000);
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		client.close();
+	}
+
+	@Benchmark
+	public String escapeJSON()
+	{
+		return client.escapeJSON(value);
+	}
+
+	@Benchmark
+	public String matchQueryBody()
+	{
+		return client.matchQueryBody("field", value, 10);
+	}
+}
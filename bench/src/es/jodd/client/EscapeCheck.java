@@ -0,0 +1,233 @@
+package es.jodd.client;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that escapeJSON writes exactly what the StringWriter based escaper it replaced did, so
+ * the benchmark numbers compare like with like.  EscapeBenchmark runs the check in its setup and
+ * it can also be run on its own with main.
+ *
+ * @author aholinch
+ *
+ */
+public class EscapeCheck
+{
+	/**
+	 * Chars the random strings are mostly built from, picked to hit every branch of the escaper.
+	 */
+	private static final char POOL[] = {'a', 'z', ' ', '<', '/', '"', '\\', '\b', '\t', '\n', '\f', '\r',
+		'\u0000', '\u0001', '\u001f', '\u007f', '\u0080', '\u009f', '\u00a0', '\u00e9', '\u1fff', '\u2000',
+		'\u2028', '\u2029', '\u20ff', '\u2100', '\ud83d', '\ude00', '\uffff'};
+
+	/**
+	 * Run the check.
+	 *
+	 * @param args
+	 */
+	public static void main(String args[])
+	{
+		ElasticClient client = new ElasticClient();
+		try
+		{
+			int cnt = verify(client, 200000);
+			System.out.println("escapeJSON matches the old escaper on " + cnt + " strings");
+		}
+		finally
+		{
+			client.close();
+		}
+	}
+
+	/**
+	 * Compare both escapeJSON methods with the old escaper on the fixed cases and on random
+	 * strings from a fixed seed.
+	 *
+	 * @param client
+	 * @param randomCount number of random strings to try
+	 * @return the number of strings checked
+	 * @throws IllegalStateException on the first string that escapes differently
+	 */
+	public static int verify(ElasticClient client, int randomCount)
+	{
+		List<String> strs = cases();
+
+		Random r = new Random(17);
+		StringBuilder sb = new StringBuilder();
+		int len = 0;
+		for(int i=0; i<randomCount; i++)
+		{
+			sb.setLength(0);
+			len = r.nextInt(24);
+			for(int j=0; j<len; j++)
+			{
+				if(r.nextInt(4) == 0) sb.append((char)r.nextInt(0x10000));
+				else sb.append(POOL[r.nextInt(POOL.length)]);
+			}
+			strs.add(sb.toString());
+		}
+
+		for(String str : strs)
+		{
+			check(client, str);
+		}
+
+		return strs.size();
+	}
+
+	/**
+	 * The strings most likely to go wrong.
+	 */
+	private static List<String> cases()
+	{
+		List<String> strs = new ArrayList<String>();
+		strs.add(null);
+		strs.add("");
+		strs.add("plain text");
+		strs.add(BenchFixtures.queryValue(BenchFixtures.SMALL));
+		strs.add(BenchFixtures.queryValue(BenchFixtures.LARGE));
+		strs.add(BenchFixtures.queryValue(BenchFixtures.UNICODE));
+
+		// every control char alone, at the start, in the middle and at the end
+		for(char c=0; c<0x20; c++)
+		{
+			strs.add(String.valueOf(c));
+			strs.add(c + "abc");
+			strs.add("ab" + c + "c");
+			strs.add("abc" + c);
+		}
+		strs.add("\u007f\u0080\u0085\u009f\u00a0");
+
+		// line and paragraph separators and the rest of the escaped u2000 block
+		strs.add("\u2028");
+		strs.add("\u2029");
+		strs.add("line\u2028break\u2029end");
+		strs.add("\u1fff\u2000\u200b\u20ac\u20ff\u2100");
+
+		// surrogate pairs, and lone halves
+		strs.add("\ud83d\ude00");
+		strs.add("smile \ud83d\ude00 and \ud83c\udf89 \"quoted\"");
+		strs.add("\ud83d");
+		strs.add("\ude00");
+		strs.add("a\ude00\ud83d");
+
+		// runs of quotes and backslashes
+		strs.add("\"");
+		strs.add("\\");
+		strs.add("\"\"\"\"");
+		strs.add("\\\\\\\\");
+		strs.add("\\\"\\\"");
+		strs.add("\"\\\\\"");
+		strs.add("a\\\\\"\"b\\\"");
+
+		// slashes are only escaped after a <
+		strs.add("</script>");
+		strs.add("<//a</");
+		strs.add("a/b</c");
+		strs.add("<\n/");
+
+		return strs;
+	}
+
+	private static void check(ElasticClient client, String str)
+	{
+		String expected = oldEscapeJSON(str);
+		String actual = client.escapeJSON(str);
+		if(expected == null ? actual != null : !expected.equals(actual))
+		{
+			throw mismatch("escapeJSON(String)", str, expected, actual);
+		}
+
+		StringBuilder sb = new StringBuilder("x");
+		ElasticClient.escapeJSON(str, sb);
+		actual = sb.substring(1);
+		if(!actual.equals(expected == null ? "" : expected))
+		{
+			throw mismatch("escapeJSON(String,StringBuilder)", str, expected, actual);
+		}
+	}
+
+	private static IllegalStateException mismatch(String method, String str, String expected, String actual)
+	{
+		return new IllegalStateException(method + " differs from the old escaper for " + codes(str) + ": expected " + codes(expected) + " but got " + codes(actual));
+	}
+
+	/**
+	 * The string as char codes so control chars and lone surrogates show up in the message.
+	 */
+	private static String codes(String str)
+	{
+		if(str == null) return "null";
+
+		StringBuilder sb = new StringBuilder("[");
+		for(int i=0; i<str.length(); i++)
+		{
+			if(i > 0) sb.append(' ');
+			sb.append(Integer.toHexString(str.charAt(i)));
+		}
+		return sb.append(']').toString();
+	}
+
+	/**
+	 * The escaper escapeJSON replaced, kept as it was.
+	 *
+	 * @param str
+	 * @return
+	 */
+	public static String oldEscapeJSON(String str)
+	{
+		if(str == null || str.length() == 0) return str;
+
+		int len = str.length();
+		char b;
+		char c = 0;
+		String hhhh;
+		StringWriter w = new StringWriter((int)(1.1*len));
+		for (int i = 0; i < len; i += 1) {
+			b = c;
+			c = str.charAt(i);
+			switch (c) {
+			case '\\':
+			case '"':
+				w.write('\\');
+				w.write(c);
+				break;
+			case '/':
+				if (b == '<') {
+					w.write('\\');
+				}
+				w.write(c);
+				break;
+			case '\b':
+				w.write("\\b");
+				break;
+			case '\t':
+				w.write("\\t");
+				break;
+			case '\n':
+				w.write("\\n");
+				break;
+			case '\f':
+				w.write("\\f");
+				break;
+			case '\r':
+				w.write("\\r");
+				break;
+			default:
+				if (c < ' ' || (c >= '\u0080' && c < '\u00a0')
+						|| (c >= '\u2000' && c < '\u2100')) {
+					w.write("\\u");
+					hhhh = Integer.toHexString(c);
+					w.write("0000", 0, 4 - hhhh.length());
+					w.write(hhhh);
+				} else {
+					w.write(c);
+				}
+			}
+		}
+
+		return w.toString();
+	}
+}
@@ -0,0 +1,81 @@
+package es.jodd.client;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of parsing _search responses, with and without reading every hit's source.
+ *
+ * @author aholinch
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SearchResponseBenchmark
+{
+	@Param({"10", "1000"})
+	public int hits;
+
+	@Param({BenchFixtures.SMALL, BenchFixtures.LARGE, BenchFixtures.UNICODE})
+	public String kind;
+
+	private ElasticClient client;
+
+	private byte response[];
+
+	@Setup
+	public void setup()
+	{
+		client = new ElasticClient();
+		response = BenchFixtures.searchResponse(hits, kind);
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		client.close();
+	}
+
+	@Benchmark
+	public SearchResults parse()
+	{
+		return client.parseElasticSearchResponse(response, hits);
+	}
+
+	@Benchmark
+	public void parseAndGetSource(Blackhole bh)
+	{
+		SearchResults res = client.parseElasticSearchResponse(response, hits);
+		for(SearchHit hit : res.getHits())
+		{
+			bh.consume(hit.getSource());
+		}
+	}
+
+	@Benchmark
+	public void parseAndGetSourceObject(Blackhole bh)
+	{
+		SearchResults res = client.parseElasticSearchResponse(response, hits);
+		for(SearchHit hit : res.getHits())
+		{
+			bh.consume(hit.getSourceObject());
+		}
+	}
+}
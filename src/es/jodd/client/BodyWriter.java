@@ -0,0 +1,21 @@
+package es.jodd.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a request body straight to the connection instead of building it in memory first.
+ *
+ * @author aholinch
+ *
+ */
+public interface BodyWriter
+{
+	/**
+	 * Write the body.  The stream is chunk encoded and must not be closed.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out) throws IOException;
+}
@@ -0,0 +1,85 @@
+package es.jodd.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Thrown when items in a _bulk request failed permanently or were still rejected after retries.
+ * 
+ * @author aholinch
+ *
+ */
+public class BulkException extends ECException
+{
+	private static final long serialVersionUID = 1L;
+
+	protected List<BulkItemResult> results = null;
+
+	protected List<BulkItemResult> failures = null;
+
+	protected long total = 0;
+
+	/**
+	 * Constructor with the result of every item, in input order.
+	 * 
+	 * @param msg
+	 * @param results
+	 */
+	public BulkException(String msg, List<BulkItemResult> results)
+	{
+		super(msg);
+		this.results = results;
+		total = results.size();
+
+		failures = new ArrayList<BulkItemResult>();
+		for(BulkItemResult item : results)
+		{
+			if(item.isFailed()) failures.add(item);
+		}
+	}
+
+	/**
+	 * Constructor with only the failed items, for when there are too many items to keep every
+	 * result, e.g. ingesting a file.  getResults returns null.
+	 * 
+	 * @param msg
+	 * @param failures
+	 * @param total number of items sent
+	 */
+	public BulkException(String msg, List<BulkItemResult> failures, long total)
+	{
+		super(msg);
+		this.failures = failures;
+		this.total = total;
+	}
+
+	/**
+	 * The result of every item, in input order, or null if only the failures were kept.
+	 * 
+	 * @return
+	 */
+	public List<BulkItemResult> getResults()
+	{
+		return results;
+	}
+
+	/**
+	 * Only the failed items.
+	 * 
+	 * @return
+	 */
+	public List<BulkItemResult> getFailures()
+	{
+		return failures;
+	}
+
+	/**
+	 * Number of items sent, failed or not.
+	 * 
+	 * @return
+	 */
+	public long getTotal()
+	{
+		return total;
+	}
+}
@@ -0,0 +1,406 @@
+package es.jodd.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Splits an NDJSON file into _bulk request bodies without reading it onto the heap.  The file
+ * is memory mapped a window at a time and each chunk is found by walking it line by line, then
+ * copied from the mapping to the request through a small reusable buffer.  A raw bulk file
+ * holds action lines, each followed by a source line unless the action is a delete, and is
+ * sent as is.  A source only file holds one doc per line and has an index action line written
+ * in front of each doc.  Blank lines are skipped.
+ *
+ * @author aholinch
+ *
+ */
+public class BulkFile implements AutoCloseable
+{
+	/**
+	 * The smallest mapped window.
+	 */
+	public static final long MIN_WINDOW = 64L*1024L*1024L;
+
+	private static final byte DELETE[] = "delete".getBytes(StandardCharsets.US_ASCII);
+
+	protected final File file;
+
+	protected final boolean sourceOnly;
+
+	private final RandomAccessFile raf;
+
+	private final FileChannel channel;
+
+	private final long size;
+
+	/**
+	 * The action line written in front of each doc of a source only file.
+	 */
+	private final byte action[];
+
+	private long window = MIN_WINDOW;
+
+	private MappedByteBuffer map = null;
+
+	private long mapStart = 0;
+
+	private long mapEnd = 0;
+
+	private final byte copyBuf[] = new byte[64*1024];
+
+	/**
+	 * Where the next chunk starts.
+	 */
+	private long pos = 0;
+
+	/**
+	 * Number of items in the chunks returned so far.
+	 */
+	private long items = 0;
+
+	/**
+	 * Open the file.
+	 *
+	 * @param file
+	 * @param index the index for the action lines of a source only file, may be null for a raw bulk file
+	 * @param sourceOnly true if each line is a doc, false if the file is already in _bulk format
+	 * @throws IOException
+	 */
+	public BulkFile(File file, String index, boolean sourceOnly) throws IOException
+	{
+		if(sourceOnly && index == null)
+		{
+			throw new IllegalArgumentException("An index is needed to ingest a source only file");
+		}
+
+		this.file = file;
+		this.sourceOnly = sourceOnly;
+
+		raf = new RandomAccessFile(file, "r");
+		channel = raf.getChannel();
+		size = channel.size();
+
+		if(sourceOnly)
+		{
+			StringBuilder sb = new StringBuilder();
+			sb.append("{\"index\":{\"_index\":\"");
+			ElasticClient.escapeJSON(index, sb);
+			sb.append("\"}}\n");
+			action = sb.toString().getBytes(StandardCharsets.UTF_8);
+		}
+		else
+		{
+			action = null;
+		}
+	}
+
+	public File getFile()
+	{
+		return file;
+	}
+
+	public boolean isSourceOnly()
+	{
+		return sourceOnly;
+	}
+
+	public long getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * Number of bytes read so far.
+	 *
+	 * @return
+	 */
+	public long getPosition()
+	{
+		return pos;
+	}
+
+	/**
+	 * Find the next chunk, ending at maxItems items or before the item that would take the body
+	 * over maxBytes.  A chunk always holds at least one item.
+	 *
+	 * @param maxItems
+	 * @param maxBytes 0 for no limit
+	 * @return null at the end of the file
+	 * @throws IOException
+	 */
+	public Chunk next(int maxItems, long maxBytes) throws IOException
+	{
+		if(maxItems < 1) maxItems = 1;
+
+		// keep the whole chunk inside one mapping where possible
+		if(maxBytes > 0 && maxBytes*2 > window)
+		{
+			window = Math.min(maxBytes*2, Integer.MAX_VALUE - 8);
+		}
+
+		Chunk c = new Chunk(Math.min(maxItems, 1024));
+		c.first = items;
+
+		long bytes = 0;
+		long start = 0;
+		long end = 0;
+		long itemBytes = 0;
+
+		while(c.count < maxItems && pos < size)
+		{
+			start = pos;
+			end = lineEnd(start);
+
+			if(isBlank(start, end))
+			{
+				pos = end;
+				continue;
+			}
+
+			if(sourceOnly)
+			{
+				itemBytes = action.length + (end - start);
+			}
+			else if(!isDelete(start, end) && end < size)
+			{
+				// the action line and its source line go together
+				end = lineEnd(end);
+				itemBytes = end - start;
+			}
+			else
+			{
+				itemBytes = end - start;
+			}
+
+			if(maxBytes > 0 && c.count > 0 && bytes + itemBytes > maxBytes)
+			{
+				break;
+			}
+
+			c.add(start, end);
+			bytes += itemBytes;
+			pos = end;
+		}
+
+		if(c.count == 0) return null;
+
+		items += c.count;
+		c.bytes = bytes;
+		return c;
+	}
+
+	/**
+	 * Write the chunk's items as a _bulk body.
+	 *
+	 * @param c
+	 * @param which positions of the items to write, null for all of them
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(Chunk c, int which[], OutputStream out) throws IOException
+	{
+		int n = which == null ? c.count : which.length;
+		int ind = 0;
+		long start = 0;
+		long end = 0;
+
+		for(int i=0; i<n; i++)
+		{
+			ind = which == null ? i : which[i];
+			start = c.starts[ind];
+			end = c.ends[ind];
+
+			if(sourceOnly)
+			{
+				out.write(action);
+			}
+			else
+			{
+				// runs of items that follow each other in the file go out as one copy
+				while(i+1 < n)
+				{
+					int nextInd = which == null ? i+1 : which[i+1];
+					if(c.starts[nextInd] != end) break;
+					end = c.ends[nextInd];
+					i++;
+				}
+			}
+
+			copy(start, end, out);
+			if(byteAt(end-1) != '\n')
+			{
+				// the last line of the file may not end in a newline
+				out.write('\n');
+			}
+		}
+	}
+
+	/**
+	 * Release the mapping and close the file.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		map = null;
+		raf.close();
+	}
+
+	/**
+	 * Offset just past the newline ending the line that starts at off, or the end of the file.
+	 */
+	private long lineEnd(long off) throws IOException
+	{
+		while(off < size)
+		{
+			if(off >= mapEnd || off < mapStart) remap(off);
+
+			// scan the mapping directly until the newline or the end of the window
+			int i = (int)(off - mapStart);
+			int stop = (int)(mapEnd - mapStart);
+			MappedByteBuffer m = map;
+			while(i < stop)
+			{
+				if(m.get(i++) == '\n') return mapStart + i;
+			}
+			off = mapEnd;
+		}
+		return size;
+	}
+
+	private boolean isBlank(long start, long end) throws IOException
+	{
+		byte b;
+		for(long i=start; i<end; i++)
+		{
+			b = byteAt(i);
+			if(b != ' ' && b != '\n' && b != '\r' && b != '\t') return false;
+		}
+		return true;
+	}
+
+	/**
+	 * True if the action line is a delete, which has no source line after it.
+	 */
+	private boolean isDelete(long start, long end) throws IOException
+	{
+		long i = start;
+		byte b = 0;
+		while(i < end)
+		{
+			b = byteAt(i++);
+			if(b == '"') break;
+		}
+
+		if(end - i < DELETE.length + 1) return false;
+		for(int j=0; j<DELETE.length; j++)
+		{
+			if(byteAt(i+j) != DELETE[j]) return false;
+		}
+		return byteAt(i+DELETE.length) == '"';
+	}
+
+	private byte byteAt(long off) throws IOException
+	{
+		if(off >= mapEnd || off < mapStart) remap(off);
+		return map.get((int)(off - mapStart));
+	}
+
+	/**
+	 * Copy bytes from the mapping to the stream through the reusable buffer.
+	 */
+	private void copy(long start, long end, OutputStream out) throws IOException
+	{
+		long off = start;
+		int len = 0;
+		while(off < end)
+		{
+			if(off >= mapEnd || off < mapStart) remap(off);
+
+			len = (int)Math.min(copyBuf.length, Math.min(end, mapEnd) - off);
+			map.position((int)(off - mapStart));
+			map.get(copyBuf, 0, len);
+			out.write(copyBuf, 0, len);
+			off += len;
+		}
+	}
+
+	/**
+	 * Map the window starting at off.
+	 */
+	private void remap(long off) throws IOException
+	{
+		mapStart = off;
+		mapEnd = Math.min(size, off + window);
+		map = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+	}
+
+	/**
+	 * The items of one _bulk request, as offsets into the file.
+	 */
+	public static class Chunk
+	{
+		long starts[];
+
+		long ends[];
+
+		int count = 0;
+
+		long first = 0;
+
+		long bytes = 0;
+
+		Chunk(int cap)
+		{
+			starts = new long[cap];
+			ends = new long[cap];
+		}
+
+		void add(long start, long end)
+		{
+			if(count == starts.length)
+			{
+				starts = Arrays.copyOf(starts, count*2);
+				ends = Arrays.copyOf(ends, count*2);
+			}
+			starts[count] = start;
+			ends[count] = end;
+			count++;
+		}
+
+		/**
+		 * Number of items.
+		 *
+		 * @return
+		 */
+		public int size()
+		{
+			return count;
+		}
+
+		/**
+		 * The position in the file of the first item, counting items from 0.
+		 *
+		 * @return
+		 */
+		public long getFirst()
+		{
+			return first;
+		}
+
+		/**
+		 * Size of the body when every item is written.
+		 *
+		 * @return
+		 */
+		public long getBytes()
+		{
+			return bytes;
+		}
+	}
+}
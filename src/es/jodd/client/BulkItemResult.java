@@ -0,0 +1,168 @@
+package es.jodd.client;
+
+/**
+ * The outcome of a single document in a _bulk request.
+ *
+ * @author aholinch
+ *
+ */
+public class BulkItemResult
+{
+	/**
+	 * Position of the document in the caller's input, a long since a file can hold more than
+	 * 2^31 items.
+	 */
+	protected long position;
+
+	/**
+	 * The bulk action, e.g. index or delete.
+	 */
+	protected String action;
+
+	/**
+	 * The document id.
+	 */
+	protected String id;
+
+	/**
+	 * The HTTP status for this item.
+	 */
+	protected int status;
+
+	/**
+	 * The elasticsearch result, e.g. created, updated, deleted, not_found.
+	 */
+	protected String result;
+
+	/**
+	 * The error type when the item failed.
+	 */
+	protected String errorType;
+
+	/**
+	 * The error reason when the item failed.
+	 */
+	protected String errorReason;
+
+	/**
+	 * Default constructor.
+	 */
+	public BulkItemResult()
+	{
+
+	}
+
+	public long getPosition()
+	{
+		return position;
+	}
+
+	public void setPosition(long pos)
+	{
+		position = pos;
+	}
+
+	public String getAction()
+	{
+		return action;
+	}
+
+	public void setAction(String str)
+	{
+		action = str;
+	}
+
+	public String getID()
+	{
+		return id;
+	}
+
+	public void setID(String str)
+	{
+		id = str;
+	}
+
+	public int getStatus()
+	{
+		return status;
+	}
+
+	public void setStatus(int code)
+	{
+		status = code;
+	}
+
+	public String getResult()
+	{
+		return result;
+	}
+
+	public void setResult(String str)
+	{
+		result = str;
+	}
+
+	public String getErrorType()
+	{
+		return errorType;
+	}
+
+	public void setErrorType(String str)
+	{
+		errorType = str;
+	}
+
+	public String getErrorReason()
+	{
+		return errorReason;
+	}
+
+	public void setErrorReason(String str)
+	{
+		errorReason = str;
+	}
+
+	/**
+	 * True if the item failed.  Deleting a doc that isn't there is reported as not_found with a
+	 * 404 but is not a failure.
+	 *
+	 * @return
+	 */
+	public boolean isFailed()
+	{
+		if(errorType != null) return true;
+		if(status >= 300 && !isNotFound()) return true;
+		return false;
+	}
+
+	/**
+	 * True if a delete found no doc with the id.
+	 *
+	 * @return
+	 */
+	public boolean isNotFound()
+	{
+		return status == 404 && "not_found".equals(result);
+	}
+
+	/**
+	 * True if the item was rejected because the cluster was overloaded and may succeed if resent.
+	 *
+	 * @return
+	 */
+	public boolean isRetryable()
+	{
+		return status == 429 || status == 503;
+	}
+
+	@Override
+	public String toString()
+	{
+		String str = position + " " + action + " " + id + " " + status + " " + result;
+		if(errorType != null)
+		{
+			str += " " + errorType + ": " + errorReason;
+		}
+		return str;
+	}
+}
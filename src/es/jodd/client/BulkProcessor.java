@@ -0,0 +1,517 @@
+package es.jodd.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects documents into _bulk batches and sends several batches at once.  Adding blocks
+ * when the configured number of batches are already in flight or queued, so a fast producer
+ * can't run ahead of the cluster.  Results are kept in the order documents were added.
+ *
+ * @author aholinch
+ *
+ */
+public class BulkProcessor implements AutoCloseable
+{
+	protected ElasticClient client;
+
+	protected String index;
+
+	/**
+	 * Max number of docs in one _bulk request.
+	 */
+	protected int batchSize;
+
+	/**
+	 * Max payload bytes in one _bulk request, 0 for no limit.
+	 */
+	protected long maxBatchBytes;
+
+	/**
+	 * Number of _bulk requests sent at the same time.
+	 */
+	protected int concurrentRequests;
+
+	/**
+	 * Number of full batches allowed to wait for a free sender.
+	 */
+	protected int maxQueuedBatches;
+
+	/**
+	 * Sets the batch size and concurrency when not null.
+	 */
+	protected BulkTuner tuner;
+
+	private final ExecutorService senders;
+
+	private final Semaphore permits;
+
+	private final int totalPermits;
+
+	private ScheduledExecutorService flusher = null;
+
+	private List<String> docs;
+
+	private List<String> ids;
+
+	private int batchStart = 0;
+
+	private long batchBytes = 0;
+
+	private final List<BulkItemResult> results = new ArrayList<BulkItemResult>();
+
+	private volatile ECException failure = null;
+
+	private boolean closed = false;
+
+	/**
+	 * Java logger.
+	 */
+	private static final Logger logger = Logger.getLogger(BulkProcessor.class.getName());
+
+	/**
+	 * Constructor using the client's bulk batch size, byte cap and concurrency.
+	 *
+	 * @param client
+	 * @param index
+	 */
+	public BulkProcessor(ElasticClient client, String index)
+	{
+		this(client, index, client.getBulkBatchSize(), client.getBulkConcurrency(), client.getBulkConcurrency(), 0, client.getBulkTuner());
+		maxBatchBytes = client.getBulkMaxBytes();
+	}
+
+	/**
+	 * Full constructor.
+	 *
+	 * @param client
+	 * @param index
+	 * @param batchSize max docs per request
+	 * @param concurrentRequests requests in flight at once
+	 * @param maxQueuedBatches full batches that may wait for a sender before add blocks
+	 * @param flushIntervalMillis send a partial batch after this long, 0 to disable
+	 */
+	public BulkProcessor(ElasticClient client, String index, int batchSize, int concurrentRequests, int maxQueuedBatches, long flushIntervalMillis)
+	{
+		this(client, index, batchSize, concurrentRequests, maxQueuedBatches, flushIntervalMillis, null);
+	}
+
+	/**
+	 * Full constructor with a tuner.  When the tuner is not null it sets the batch size and the
+	 * number of requests in flight, up to its max concurrency, in place of batchSize and
+	 * concurrentRequests.
+	 *
+	 * @param client
+	 * @param index
+	 * @param batchSize max docs per request
+	 * @param concurrentRequests requests in flight at once
+	 * @param maxQueuedBatches full batches that may wait for a sender before add blocks
+	 * @param flushIntervalMillis send a partial batch after this long, 0 to disable
+	 * @param tuner may be null
+	 */
+	public BulkProcessor(ElasticClient client, String index, int batchSize, int concurrentRequests, int maxQueuedBatches, long flushIntervalMillis, BulkTuner tuner)
+	{
+		if(tuner != null)
+		{
+			batchSize = tuner.getBatchSize();
+			concurrentRequests = tuner.getMaxConcurrency();
+			maxQueuedBatches = Math.max(maxQueuedBatches, concurrentRequests);
+		}
+		if(batchSize < 1) batchSize = 1;
+		if(concurrentRequests < 1) concurrentRequests = 1;
+		if(maxQueuedBatches < 0) maxQueuedBatches = 0;
+
+		this.client = client;
+		this.index = index;
+		this.batchSize = batchSize;
+		this.concurrentRequests = concurrentRequests;
+		this.maxQueuedBatches = maxQueuedBatches;
+		this.tuner = tuner;
+
+		docs = new ArrayList<String>(batchSize);
+		ids = new ArrayList<String>(batchSize);
+
+		totalPermits = concurrentRequests + maxQueuedBatches;
+		permits = new Semaphore(totalPermits);
+
+		final AtomicInteger cnt = new AtomicInteger();
+		senders = Executors.newFixedThreadPool(concurrentRequests, r -> {
+			Thread t = new Thread(r, "elastic-bulk-" + cnt.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+
+		if(flushIntervalMillis > 0)
+		{
+			flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "elastic-bulk-flush");
+				t.setDaemon(true);
+				return t;
+			});
+			flusher.scheduleWithFixedDelay(this::flushPartial, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public String getIndex()
+	{
+		return index;
+	}
+
+	/**
+	 * The number of docs that fills a batch, from the tuner if there is one.
+	 *
+	 * @return
+	 */
+	public int getBatchSize()
+	{
+		if(tuner != null) return tuner.getBatchSize();
+		return batchSize;
+	}
+
+	public long getMaxBatchBytes()
+	{
+		return maxBatchBytes;
+	}
+
+	/**
+	 * Send a batch once it reaches this many payload bytes, 0 for no limit.
+	 *
+	 * @param bytes
+	 */
+	public synchronized void setMaxBatchBytes(long bytes)
+	{
+		if(bytes < 0) bytes = 0;
+		maxBatchBytes = bytes;
+	}
+
+	public int getConcurrentRequests()
+	{
+		return concurrentRequests;
+	}
+
+	/**
+	 * Add a document with a generated id.
+	 *
+	 * @param json
+	 * @return the position of the document in the results
+	 * @throws ECException
+	 */
+	public int add(String json) throws ECException
+	{
+		return add(json, null);
+	}
+
+	/**
+	 * Add a document, overwriting any existing doc with the same id.
+	 *
+	 * @param json
+	 * @param id may be null for a generated id
+	 * @return the position of the document in the results
+	 * @throws ECException
+	 */
+	public int add(String json, String id) throws ECException
+	{
+		checkFailure();
+
+		Batch batch = null;
+		int pos = 0;
+		synchronized(this)
+		{
+			if(closed)
+			{
+				throw new ECException("Bulk processor is closed");
+			}
+
+			synchronized(results)
+			{
+				pos = results.size();
+				results.add(null);
+			}
+
+			long bytes = 0;
+			if(maxBatchBytes > 0)
+			{
+				bytes = ElasticClient.bulkEntryBytes(index, json, id);
+				if(docs.size() > 0 && batchBytes + bytes > maxBatchBytes)
+				{
+					// the new doc would push the batch over the cap
+					batch = takeBatch();
+				}
+			}
+
+			docs.add(json);
+			ids.add(id);
+			batchBytes += bytes;
+
+			if(batch == null && docs.size() >= getBatchSize())
+			{
+				batch = takeBatch();
+			}
+		}
+
+		if(batch != null)
+		{
+			submit(batch);
+		}
+
+		return pos;
+	}
+
+	/**
+	 * Send any partial batch and wait for every request in flight to finish.
+	 *
+	 * @throws ECException
+	 */
+	public void flush() throws ECException
+	{
+		flushPartial();
+
+		try
+		{
+			permits.acquire(totalPermits);
+			permits.release(totalPermits);
+		}
+		catch(InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new ECException("Interrupted waiting for bulk requests", ex);
+		}
+
+		checkFailure();
+	}
+
+	/**
+	 * Flush and stop the sender threads.  The flush thread is left to finish any batch it has
+	 * already taken rather than interrupted, so no doc is left without a result.
+	 */
+	@Override
+	public void close() throws ECException
+	{
+		Batch batch = null;
+		synchronized(this)
+		{
+			if(closed) return;
+
+			// add takes this lock too, so nothing can join the buffer after the last batch
+			closed = true;
+			if(docs.size() > 0)
+			{
+				batch = takeBatch();
+			}
+		}
+
+		try
+		{
+			if(flusher != null)
+			{
+				flusher.shutdown();
+				try
+				{
+					flusher.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+				}
+				catch(InterruptedException ex)
+				{
+					Thread.currentThread().interrupt();
+					throw new ECException("Interrupted waiting for the bulk flush thread", ex);
+				}
+			}
+
+			if(batch != null)
+			{
+				submit(batch);
+			}
+
+			flush();
+		}
+		finally
+		{
+			senders.shutdown();
+		}
+	}
+
+	/**
+	 * Results for every document added so far, in the order they were added.  Entries are null
+	 * for documents whose batch has not finished.
+	 *
+	 * @return
+	 */
+	public List<BulkItemResult> getResults()
+	{
+		synchronized(results)
+		{
+			return Collections.unmodifiableList(new ArrayList<BulkItemResult>(results));
+		}
+	}
+
+	protected void flushPartial()
+	{
+		Batch batch = null;
+		synchronized(this)
+		{
+			if(docs.size() > 0)
+			{
+				batch = takeBatch();
+			}
+		}
+
+		if(batch != null)
+		{
+			try
+			{
+				submit(batch);
+			}
+			catch(ECException ex)
+			{
+				logger.log(Level.WARNING, "Error flushing bulk batch", ex);
+			}
+		}
+	}
+
+	private Batch takeBatch()
+	{
+		Batch batch = new Batch(batchStart, docs, ids);
+		batchStart += docs.size();
+		batchBytes = 0;
+		docs = new ArrayList<String>(getBatchSize());
+		ids = new ArrayList<String>(getBatchSize());
+		return batch;
+	}
+
+	/**
+	 * Blocks while too many batches are already in flight.  A batch that can't be handed to a
+	 * sender has every doc marked failed before the error is thrown.
+	 */
+	private void submit(final Batch batch) throws ECException
+	{
+		ECException err = null;
+		try
+		{
+			permits.acquire();
+		}
+		catch(InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			err = new ECException("Interrupted waiting to send bulk request", ex);
+			fail(batch, err);
+			throw err;
+		}
+
+		try
+		{
+			senders.execute(() -> send(batch));
+		}
+		catch(RuntimeException ex)
+		{
+			permits.release();
+			err = new ECException("Unable to send bulk request", ex);
+			fail(batch, err);
+			throw err;
+		}
+	}
+
+	private void send(Batch batch)
+	{
+		boolean tuned = false;
+		try
+		{
+			if(tuner != null)
+			{
+				tuner.acquire();
+				tuned = true;
+			}
+
+			List<BulkItemResult> res = client.sendBulk(index, batch.docs, batch.ids, 0, batch.docs.size());
+			synchronized(results)
+			{
+				BulkItemResult item = null;
+				for(int i=0; i<res.size(); i++)
+				{
+					item = res.get(i);
+					item.setPosition(batch.start + i);
+					results.set(batch.start + i, item);
+				}
+			}
+		}
+		catch(ECException ex)
+		{
+			logger.log(Level.WARNING, "Error sending bulk batch", ex);
+			fail(batch, ex);
+		}
+		catch(InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			fail(batch, new ECException("Interrupted waiting to send bulk request", ex));
+		}
+		catch(RuntimeException ex)
+		{
+			// e.g. a connection error, which would otherwise leave the batch without results
+			logger.log(Level.WARNING, "Error sending bulk batch", ex);
+			fail(batch, new ECException("Error sending bulk batch", ex));
+		}
+		finally
+		{
+			if(tuned) tuner.release();
+			permits.release();
+		}
+	}
+
+	/**
+	 * Record the error against every doc in the batch.
+	 */
+	private void fail(Batch batch, ECException ex)
+	{
+		if(failure == null) failure = ex;
+
+		synchronized(results)
+		{
+			BulkItemResult item = null;
+			for(int i=0; i<batch.docs.size(); i++)
+			{
+				item = new BulkItemResult();
+				item.setPosition(batch.start + i);
+				item.setAction("index");
+				item.setID(batch.ids.get(i));
+				item.setStatus(ex.getHttpStatus());
+				item.setErrorType("request_failed");
+				item.setErrorReason(ex.getMessage());
+				results.set(batch.start + i, item);
+			}
+		}
+	}
+
+	private void checkFailure() throws ECException
+	{
+		ECException ex = failure;
+		if(ex != null)
+		{
+			failure = null;
+			throw ex;
+		}
+	}
+
+	/**
+	 * A slice of the input waiting to be sent.
+	 */
+	private static class Batch
+	{
+		final int start;
+		final List<String> docs;
+		final List<String> ids;
+
+		Batch(int start, List<String> docs, List<String> ids)
+		{
+			this.start = start;
+			this.docs = docs;
+			this.ids = ids;
+		}
+	}
+}
@@ -0,0 +1,306 @@
+package es.jodd.client;
+
+/**
+ * Adjusts the _bulk batch size and number of concurrent bulk requests from how the cluster
+ * responds, additive increase and multiplicative decrease as in TCP congestion control.  Items
+ * rejected with 429 or 503 mean the cluster's write queue is full, so concurrency is cut and
+ * once it is at its minimum the batch size is cut too.  A request slower than targetLatency cuts
+ * the batch size.  Requests that come back fast and clean grow the batch by batchStep, and a
+ * full round of them, one per request allowed in flight, adds one to the concurrency.  Feedback
+ * from requests sent before the last cut is not acted on again, so a single overload doesn't
+ * collapse both values to their minimum.
+ *
+ * @author aholinch
+ *
+ */
+public class BulkTuner
+{
+	/**
+	 * Bulk requests slower than this, in ms, shrink the batch size.
+	 */
+	protected long targetLatency = 1000L;
+
+	protected int minBatchSize = 100;
+
+	protected int maxBatchSize = 20000;
+
+	/**
+	 * Docs added to the batch size after each fast and clean request.
+	 */
+	protected int batchStep = 100;
+
+	protected int minConcurrency = 1;
+
+	protected int maxConcurrency = 8;
+
+	/**
+	 * What batch size and concurrency are multiplied by when cut.
+	 */
+	protected double decreaseFactor = 0.5;
+
+	private int batchSize;
+
+	private int concurrency;
+
+	private int inFlight = 0;
+
+	private int goodStreak = 0;
+
+	private long lastDecrease = 0;
+
+	private long requests = 0;
+
+	private long rejections = 0;
+
+	private long slowRequests = 0;
+
+	/**
+	 * Default constructor, starting at 1000 docs and one request at a time.
+	 */
+	public BulkTuner()
+	{
+		this(1000, 1);
+	}
+
+	/**
+	 * Constructor with the starting values.
+	 *
+	 * @param batchSize
+	 * @param concurrency
+	 */
+	public BulkTuner(int batchSize, int concurrency)
+	{
+		this.batchSize = Math.max(1, batchSize);
+		this.concurrency = Math.max(1, concurrency);
+		if(this.batchSize < minBatchSize) minBatchSize = this.batchSize;
+		if(this.batchSize > maxBatchSize) maxBatchSize = this.batchSize;
+		if(this.concurrency > maxConcurrency) maxConcurrency = this.concurrency;
+		lastDecrease = System.nanoTime();
+	}
+
+	/**
+	 * The current batch size.
+	 *
+	 * @return
+	 */
+	public synchronized int getBatchSize()
+	{
+		return batchSize;
+	}
+
+	/**
+	 * The current number of bulk requests allowed in flight.
+	 *
+	 * @return
+	 */
+	public synchronized int getConcurrency()
+	{
+		return concurrency;
+	}
+
+	public long getTargetLatency()
+	{
+		return targetLatency;
+	}
+
+	/**
+	 * Bulk requests slower than this shrink the batch size.  Defaults to 1 second.
+	 *
+	 * @param millis
+	 */
+	public void setTargetLatency(long millis)
+	{
+		targetLatency = millis;
+	}
+
+	public int getMinBatchSize()
+	{
+		return minBatchSize;
+	}
+
+	public int getMaxBatchSize()
+	{
+		return maxBatchSize;
+	}
+
+	/**
+	 * The range the batch size is kept in.  Defaults to 100 to 20000.
+	 *
+	 * @param min
+	 * @param max
+	 */
+	public synchronized void setBatchSizeRange(int min, int max)
+	{
+		if(min < 1) min = 1;
+		if(max < min) max = min;
+		minBatchSize = min;
+		maxBatchSize = max;
+		batchSize = Math.max(min, Math.min(max, batchSize));
+	}
+
+	public int getBatchStep()
+	{
+		return batchStep;
+	}
+
+	public void setBatchStep(int num)
+	{
+		if(num < 1) num = 1;
+		batchStep = num;
+	}
+
+	public int getMinConcurrency()
+	{
+		return minConcurrency;
+	}
+
+	public int getMaxConcurrency()
+	{
+		return maxConcurrency;
+	}
+
+	/**
+	 * The range the concurrency is kept in.  Defaults to 1 to 8.
+	 *
+	 * @param min
+	 * @param max
+	 */
+	public synchronized void setConcurrencyRange(int min, int max)
+	{
+		if(min < 1) min = 1;
+		if(max < min) max = min;
+		minConcurrency = min;
+		maxConcurrency = max;
+		concurrency = Math.max(min, Math.min(max, concurrency));
+		notifyAll();
+	}
+
+	public double getDecreaseFactor()
+	{
+		return decreaseFactor;
+	}
+
+	/**
+	 * What batch size and concurrency are multiplied by when cut, between 0 and 1.  Defaults to 0.5.
+	 *
+	 * @param factor
+	 */
+	public void setDecreaseFactor(double factor)
+	{
+		decreaseFactor = factor;
+	}
+
+	/**
+	 * Wait until another bulk request may be sent.
+	 *
+	 * @throws InterruptedException
+	 */
+	public synchronized void acquire() throws InterruptedException
+	{
+		while(inFlight >= concurrency)
+		{
+			wait();
+		}
+		inFlight++;
+	}
+
+	/**
+	 * Called when a request started with acquire finishes.
+	 */
+	public synchronized void release()
+	{
+		inFlight--;
+		notifyAll();
+	}
+
+	/**
+	 * Feed back the outcome of a bulk request.
+	 *
+	 * @param started System.nanoTime() when the request was sent
+	 * @param nanos how long it took
+	 * @param docs number of items sent
+	 * @param rejected number of items rejected with 429 or 503, or docs if the whole request was
+	 */
+	public synchronized void record(long started, long nanos, int docs, int rejected)
+	{
+		requests++;
+
+		boolean slow = nanos/1000000L > targetLatency;
+		if(rejected > 0) rejections++;
+		if(slow) slowRequests++;
+
+		if(rejected > 0 || slow)
+		{
+			goodStreak = 0;
+
+			// this request was sent under the old settings, the last cut already covers it
+			if(started - lastDecrease < 0) return;
+
+			if(rejected > 0 && concurrency > minConcurrency)
+			{
+				concurrency = Math.max(minConcurrency, (int)(concurrency*decreaseFactor));
+			}
+			else
+			{
+				batchSize = Math.max(minBatchSize, (int)(batchSize*decreaseFactor));
+			}
+			lastDecrease = System.nanoTime();
+			return;
+		}
+
+		// a short batch, e.g. the tail of the input or one cut by the byte cap, says nothing
+		// about a bigger one
+		if(docs*2 >= batchSize)
+		{
+			batchSize = Math.min(maxBatchSize, batchSize + batchStep);
+		}
+
+		goodStreak++;
+		if(goodStreak >= concurrency)
+		{
+			goodStreak = 0;
+			if(concurrency < maxConcurrency)
+			{
+				concurrency++;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Number of bulk requests fed back.
+	 *
+	 * @return
+	 */
+	public synchronized long getRequests()
+	{
+		return requests;
+	}
+
+	/**
+	 * Number of bulk requests with rejected items.
+	 *
+	 * @return
+	 */
+	public synchronized long getRejections()
+	{
+		return rejections;
+	}
+
+	/**
+	 * Number of bulk requests slower than targetLatency.
+	 *
+	 * @return
+	 */
+	public synchronized long getSlowRequests()
+	{
+		return slowRequests;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "BulkTuner[batchSize=" + batchSize + ", concurrency=" + concurrency + ", requests=" + requests
+			+ ", rejections=" + rejections + ", slow=" + slowRequests + "]";
+	}
+}
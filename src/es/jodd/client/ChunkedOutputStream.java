@@ -0,0 +1,116 @@
+package es.jodd.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes HTTP/1.1 chunked transfer encoding.  Data is buffered until a full chunk is ready so
+ * memory use depends on the chunk size rather than the size of the body.
+ *
+ * @author aholinch
+ *
+ */
+public class ChunkedOutputStream extends OutputStream
+{
+	private static final byte CRLF[] = {'\r','\n'};
+
+	private static final byte LAST_CHUNK[] = {'0','\r','\n','\r','\n'};
+
+	protected final OutputStream out;
+
+	protected final byte buf[];
+
+	protected int count = 0;
+
+	private boolean finished = false;
+
+	/**
+	 * Default chunk size is 64 KB.
+	 *
+	 * @param out
+	 */
+	public ChunkedOutputStream(OutputStream out)
+	{
+		this(out, 64*1024);
+	}
+
+	public ChunkedOutputStream(OutputStream out, int chunkSize)
+	{
+		this.out = out;
+		buf = new byte[chunkSize];
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		if(count == buf.length)
+		{
+			writeChunk();
+		}
+		buf[count++] = (byte)b;
+	}
+
+	@Override
+	public void write(byte b[], int off, int len) throws IOException
+	{
+		int n = 0;
+		while(len > 0)
+		{
+			if(count == buf.length)
+			{
+				writeChunk();
+			}
+			n = Math.min(len, buf.length - count);
+			System.arraycopy(b, off, buf, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Sends whatever is buffered as a chunk.
+	 */
+	@Override
+	public void flush() throws IOException
+	{
+		writeChunk();
+		out.flush();
+	}
+
+	/**
+	 * Write the remaining data and the terminating chunk.  The underlying stream is left open.
+	 *
+	 * @throws IOException
+	 */
+	public void finish() throws IOException
+	{
+		if(finished) return;
+
+		writeChunk();
+		out.write(LAST_CHUNK);
+		out.flush();
+		finished = true;
+	}
+
+	/**
+	 * Same as finish, the underlying stream belongs to the connection.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		finish();
+	}
+
+	protected void writeChunk() throws IOException
+	{
+		if(count == 0) return;
+
+		out.write(Integer.toHexString(count).getBytes(StandardCharsets.US_ASCII));
+		out.write(CRLF);
+		out.write(buf, 0, count);
+		out.write(CRLF);
+		count = 0;
+	}
+}
@@ -0,0 +1,148 @@
+package es.jodd.client;
+
+/**
+ * Tracks failures for one node.  After failureThreshold failures in a row the circuit opens and
+ * requests fail fast without being sent.  Once openMillis have passed a single trial request is
+ * let through; the circuit closes if it succeeds and opens again if it fails.
+ *
+ * @author aholinch
+ *
+ */
+public class CircuitBreaker
+{
+	public static final int CLOSED = 0;
+
+	public static final int OPEN = 1;
+
+	public static final int HALF_OPEN = 2;
+
+	/**
+	 * Failures in a row that open the circuit.
+	 */
+	protected int failureThreshold;
+
+	/**
+	 * How long the circuit stays open before a trial request.
+	 */
+	protected long openMillis;
+
+	private volatile int state = CLOSED;
+
+	private int failures = 0;
+
+	private long openedAt = 0;
+
+	private boolean trialInFlight = false;
+
+	private long rejected = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param failureThreshold
+	 * @param openMillis
+	 */
+	public CircuitBreaker(int failureThreshold, long openMillis)
+	{
+		if(failureThreshold < 1) failureThreshold = 1;
+
+		this.failureThreshold = failureThreshold;
+		this.openMillis = openMillis;
+	}
+
+	/**
+	 * True if a request may be sent.  In the half open state only the trial request is allowed.
+	 *
+	 * @return
+	 */
+	public boolean allowRequest()
+	{
+		if(state == CLOSED) return true;
+
+		synchronized(this)
+		{
+			if(state == OPEN && System.currentTimeMillis() - openedAt >= openMillis)
+			{
+				state = HALF_OPEN;
+				trialInFlight = false;
+			}
+
+			if(state == HALF_OPEN && !trialInFlight)
+			{
+				trialInFlight = true;
+				return true;
+			}
+
+			if(state == CLOSED) return true;
+
+			rejected++;
+			return false;
+		}
+	}
+
+	/**
+	 * Record a request that reached the node and got a healthy answer.
+	 */
+	public void recordSuccess()
+	{
+		if(state == CLOSED && failures == 0) return;
+
+		synchronized(this)
+		{
+			failures = 0;
+			trialInFlight = false;
+			state = CLOSED;
+		}
+	}
+
+	/**
+	 * Record a connection failure or overloaded response.
+	 */
+	public synchronized void recordFailure()
+	{
+		failures++;
+		trialInFlight = false;
+		if(state == HALF_OPEN || failures >= failureThreshold)
+		{
+			state = OPEN;
+			openedAt = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * CLOSED, OPEN or HALF_OPEN.
+	 *
+	 * @return
+	 */
+	public int getState()
+	{
+		return state;
+	}
+
+	public int getFailureThreshold()
+	{
+		return failureThreshold;
+	}
+
+	public long getOpenMillis()
+	{
+		return openMillis;
+	}
+
+	/**
+	 * Number of requests failed fast while the circuit was open.
+	 *
+	 * @return
+	 */
+	public synchronized long getRejected()
+	{
+		return rejected;
+	}
+
+	@Override
+	public String toString()
+	{
+		String str = state == CLOSED ? "closed" : state == OPEN ? "open" : "half_open";
+		return "CircuitBreaker[" + str + ", rejected=" + getRejected() + "]";
+	}
+}
@@ -0,0 +1,19 @@
+package es.jodd.client;
+
+import jodd.http.HttpException;
+
+/**
+ * Thrown in place of sending a request to a node whose circuit breaker is open.
+ *
+ * @author aholinch
+ *
+ */
+public class CircuitOpenException extends HttpException
+{
+	private static final long serialVersionUID = 1L;
+
+	public CircuitOpenException(String url)
+	{
+		super("Circuit open for " + url);
+	}
+}
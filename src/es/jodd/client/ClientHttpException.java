@@ -0,0 +1,26 @@
+package es.jodd.client;
+
+import jodd.http.HttpException;
+
+/**
+ * Thrown for a request that failed on the client side, e.g. waiting for a pooled connection or
+ * an error from the caller's BodyWriter.  Unlike other HttpExceptions it says nothing about the
+ * node, so the node is not marked dead.
+ *
+ * @author aholinch
+ *
+ */
+public class ClientHttpException extends HttpException
+{
+	private static final long serialVersionUID = 1L;
+
+	public ClientHttpException(String msg)
+	{
+		super(msg);
+	}
+
+	public ClientHttpException(String msg, Throwable t)
+	{
+		super(msg, t);
+	}
+}
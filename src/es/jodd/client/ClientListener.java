@@ -0,0 +1,52 @@
+package es.jodd.client;
+
+/**
+ * Receives a callback around every HTTP request the client sends, e.g. to bridge into a metrics
+ * system.  Callbacks run on the calling thread so they need to be cheap and thread safe.  The
+ * operation is always one of the constants below so it can be compared by identity.
+ *
+ * @author aholinch
+ *
+ */
+public interface ClientListener
+{
+	public static final String OP_SEARCH = "search";
+
+	public static final String OP_COUNT = "count";
+
+	public static final String OP_SCROLL = "scroll";
+
+	public static final String OP_PIT = "pit";
+
+	public static final String OP_GET = "get";
+
+	public static final String OP_INDEX = "index";
+
+	public static final String OP_DELETE = "delete";
+
+	public static final String OP_BULK = "bulk";
+
+	public static final String OP_DELETE_BY_QUERY = "delete_by_query";
+
+	public static final String OP_METADATA = "metadata";
+
+	public static final String OP_OTHER = "other";
+
+	/**
+	 * Called before the request is sent.
+	 *
+	 * @param operation
+	 */
+	public void requestStarted(String operation);
+
+	/**
+	 * Called once the response has been read or the request failed.
+	 *
+	 * @param operation
+	 * @param status the HTTP status, 0 when no response was received
+	 * @param nanos elapsed time
+	 * @param bytesSent request body size as sent, after compression
+	 * @param bytesReceived response body size as received, before decompression
+	 */
+	public void requestFinished(String operation, int status, long nanos, long bytesSent, long bytesReceived);
+}
@@ -0,0 +1,254 @@
+package es.jodd.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A ClientListener that keeps per operation request counts, latency histograms, byte counts
+ * and in flight gauges, along with a count of responses by HTTP status.  Recording only bumps
+ * counters, nothing is allocated once an operation has been seen.
+ *
+ * @author aholinch
+ *
+ */
+public class ClientMetrics implements ClientListener
+{
+	/**
+	 * Upper bounds in ms of the latency buckets, the last bucket has no upper bound.
+	 */
+	public static final long BUCKETS[] = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000};
+
+	private final ConcurrentHashMap<String,OperationMetrics> operations = new ConcurrentHashMap<String,OperationMetrics>();
+
+	/**
+	 * Responses by status, index 0 counts requests that got no response.
+	 */
+	private final AtomicLongArray statusCounts = new AtomicLongArray(600);
+
+	/**
+	 * Default constructor.
+	 */
+	public ClientMetrics()
+	{
+
+	}
+
+	@Override
+	public void requestStarted(String operation)
+	{
+		get(operation).inFlight.incrementAndGet();
+	}
+
+	@Override
+	public void requestFinished(String operation, int status, long nanos, long bytesSent, long bytesReceived)
+	{
+		OperationMetrics m = get(operation);
+		m.inFlight.decrementAndGet();
+		m.count.increment();
+		m.totalNanos.add(nanos);
+		m.bytesSent.add(bytesSent);
+		m.bytesReceived.add(bytesReceived);
+		if(status < 200 || status >= 300) m.errors.increment();
+		m.latency.incrementAndGet(bucket(nanos));
+
+		if(status < 0 || status >= 600) status = 0;
+		statusCounts.incrementAndGet(status);
+	}
+
+	/**
+	 * Returns the metrics for the operation, creating them the first time it is seen.
+	 *
+	 * @param operation
+	 * @return
+	 */
+	public OperationMetrics get(String operation)
+	{
+		OperationMetrics m = operations.get(operation);
+		if(m == null)
+		{
+			m = operations.computeIfAbsent(operation, OperationMetrics::new);
+		}
+		return m;
+	}
+
+	/**
+	 * The names of the operations seen so far.
+	 *
+	 * @return
+	 */
+	public List<String> getOperations()
+	{
+		List<String> names = new ArrayList<String>(operations.keySet());
+		Collections.sort(names);
+		return names;
+	}
+
+	/**
+	 * Number of responses with the status, 0 for requests that got no response.
+	 *
+	 * @param status
+	 * @return
+	 */
+	public long getStatusCount(int status)
+	{
+		if(status < 0 || status >= 600) return 0;
+		return statusCounts.get(status);
+	}
+
+	/**
+	 * Number of requests in flight across all operations.
+	 *
+	 * @return
+	 */
+	public long getInFlight()
+	{
+		long cnt = 0;
+		for(OperationMetrics m : operations.values())
+		{
+			cnt += m.getInFlight();
+		}
+		return cnt;
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder("ClientMetrics[");
+		List<String> names = getOperations();
+		for(int i=0; i<names.size(); i++)
+		{
+			if(i > 0) sb.append(", ");
+			sb.append(get(names.get(i)));
+		}
+		return sb.append(']').toString();
+	}
+
+	private static int bucket(long nanos)
+	{
+		long ms = nanos/1000000L;
+		for(int i=0; i<BUCKETS.length; i++)
+		{
+			if(ms < BUCKETS[i]) return i;
+		}
+		return BUCKETS.length;
+	}
+
+	/**
+	 * Counters for a single operation.
+	 */
+	public static class OperationMetrics
+	{
+		protected final String operation;
+
+		protected final LongAdder count = new LongAdder();
+
+		protected final LongAdder errors = new LongAdder();
+
+		protected final LongAdder totalNanos = new LongAdder();
+
+		protected final LongAdder bytesSent = new LongAdder();
+
+		protected final LongAdder bytesReceived = new LongAdder();
+
+		protected final AtomicLong inFlight = new AtomicLong();
+
+		protected final AtomicLongArray latency = new AtomicLongArray(BUCKETS.length+1);
+
+		public OperationMetrics(String operation)
+		{
+			this.operation = operation;
+		}
+
+		public String getOperation()
+		{
+			return operation;
+		}
+
+		public long getCount()
+		{
+			return count.sum();
+		}
+
+		/**
+		 * Requests that failed or got a non 2xx response.
+		 *
+		 * @return
+		 */
+		public long getErrors()
+		{
+			return errors.sum();
+		}
+
+		public long getBytesSent()
+		{
+			return bytesSent.sum();
+		}
+
+		public long getBytesReceived()
+		{
+			return bytesReceived.sum();
+		}
+
+		public long getInFlight()
+		{
+			return inFlight.get();
+		}
+
+		public double getMeanMillis()
+		{
+			long cnt = count.sum();
+			if(cnt == 0) return 0;
+			return totalNanos.sum()/1000000.0/cnt;
+		}
+
+		/**
+		 * Number of requests in the latency bucket, see BUCKETS.
+		 *
+		 * @param bucket
+		 * @return
+		 */
+		public long getBucketCount(int bucket)
+		{
+			return latency.get(bucket);
+		}
+
+		/**
+		 * Approximate latency percentile, the upper bound of the bucket the percentile falls in.
+		 *
+		 * @param pct between 0 and 100
+		 * @return ms, or Long.MAX_VALUE if it falls in the last bucket
+		 */
+		public long getPercentileMillis(double pct)
+		{
+			long total = 0;
+			int size = latency.length();
+			for(int i=0; i<size; i++)
+			{
+				total += latency.get(i);
+			}
+			if(total == 0) return 0;
+
+			long target = (long)Math.ceil(total*pct/100.0);
+			long cnt = 0;
+			for(int i=0; i<BUCKETS.length; i++)
+			{
+				cnt += latency.get(i);
+				if(cnt >= target) return BUCKETS[i];
+			}
+			return Long.MAX_VALUE;
+		}
+
+		@Override
+		public String toString()
+		{
+			return operation + "{count=" + getCount() + ", errors=" + getErrors() + ", inFlight=" + getInFlight()
+				+ ", meanMs=" + String.format("%.2f", getMeanMillis()) + ", p99Ms=" + getPercentileMillis(99)
+				+ ", sent=" + getBytesSent() + ", received=" + getBytesReceived() + "}";
+		}
+	}
+}
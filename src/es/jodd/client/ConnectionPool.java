@@ -0,0 +1,851 @@
+package es.jodd.client;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jodd.http.HttpConnection;
+import jodd.http.HttpConnectionProvider;
+import jodd.http.HttpException;
+import jodd.http.HttpRequest;
+import jodd.http.HttpResponse;
+import jodd.http.net.SocketHttpConnection;
+
+/**
+ * A pool of persistent keep-alive connections, grouped by host.  Requests are sent over
+ * an idle connection when one is available so that TCP and TLS setup is only paid once.  A
+ * background thread closes connections that sit idle past the idle timeout, and a connection
+ * idle for more than validateAfterMillis is checked for a close from the server before reuse.
+ *
+ * @author aholinch
+ *
+ */
+public class ConnectionPool
+{
+	/**
+	 * Creates the underlying socket connections.
+	 */
+	protected HttpConnectionProvider provider;
+
+	/**
+	 * The max number of connections leased to a single host at the same time.
+	 */
+	protected int maxPerHost = 20;
+
+	/**
+	 * Idle connections older than this are closed instead of reused.
+	 */
+	protected long idleTimeoutMillis = 30000L;
+
+	/**
+	 * Idle connections older than this are checked for a close from the server before reuse.
+	 */
+	protected long validateAfterMillis = 2000L;
+
+	/**
+	 * How long to wait for a free connection before giving up.
+	 */
+	protected long leaseTimeoutMillis = 30000L;
+
+	/**
+	 * Per host state, keyed by protocol://host:port.
+	 */
+	private final Map<String,HostPool> hosts = new HashMap<String,HostPool>();
+
+	private boolean closed = false;
+
+	private ScheduledExecutorService evictor = null;
+
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong reused = new AtomicLong();
+	private final AtomicLong evicted = new AtomicLong();
+	private final AtomicLong discarded = new AtomicLong();
+
+	/**
+	 * Java logger.
+	 */
+	private static final Logger logger = Logger.getLogger(ConnectionPool.class.getName());
+
+	/**
+	 * Default constructor uses jodd's default connection provider, so any provider or SSL setup
+	 * installed with HttpConnectionProvider.Implementation.set is kept.
+	 */
+	public ConnectionPool()
+	{
+		this(HttpConnectionProvider.get());
+	}
+
+	/**
+	 * Constructor with a custom connection provider, e.g. one configured with a truststore.
+	 *
+	 * @param provider
+	 */
+	public ConnectionPool(HttpConnectionProvider provider)
+	{
+		this.provider = provider;
+	}
+
+	public int getMaxPerHost()
+	{
+		return maxPerHost;
+	}
+
+	/**
+	 * Set the max number of concurrent connections per host.  Only affects hosts not yet seen.
+	 *
+	 * @param max
+	 */
+	public void setMaxPerHost(int max)
+	{
+		if(max < 1) max = 1;
+		maxPerHost = max;
+	}
+
+	public long getIdleTimeoutMillis()
+	{
+		return idleTimeoutMillis;
+	}
+
+	public void setIdleTimeoutMillis(long millis)
+	{
+		idleTimeoutMillis = millis;
+	}
+
+	public long getValidateAfterMillis()
+	{
+		return validateAfterMillis;
+	}
+
+	/**
+	 * Check connections idle for longer than this for a close from the server before reusing
+	 * them, which costs a millisecond.  Use a negative value to never check.
+	 *
+	 * @param millis
+	 */
+	public void setValidateAfterMillis(long millis)
+	{
+		validateAfterMillis = millis;
+	}
+
+	public long getLeaseTimeoutMillis()
+	{
+		return leaseTimeoutMillis;
+	}
+
+	public void setLeaseTimeoutMillis(long millis)
+	{
+		leaseTimeoutMillis = millis;
+	}
+
+	/**
+	 * Send the request over a pooled connection.  If a reused connection turns out to be
+	 * stale the request is sent once more over a fresh connection, unless it is a POST and
+	 * some of it already reached the socket.
+	 *
+	 * @param req
+	 * @return
+	 */
+	public HttpResponse send(HttpRequest req)
+	{
+		PooledConnection pc = null;
+		if(req.connection() == null)
+		{
+			pc = new PooledConnection();
+			req.open(pc);
+		}
+		else if(req.connection() instanceof PooledConnection)
+		{
+			// left over from an earlier failed attempt with this request
+			pc = (PooledConnection)req.connection();
+		}
+		else
+		{
+			// caller opened their own connection
+			return req.send();
+		}
+
+		HostPool hp = getHostPool(req);
+
+		hp.lease();
+		try
+		{
+			req.connectionKeepAlive(true);
+
+			HttpConnection conn = hp.pollIdle();
+			if(conn != null)
+			{
+				reused.incrementAndGet();
+				pc.delegate = conn;
+				pc.written = false;
+				try
+				{
+					return finish(hp, req, pc, checkResponse(req, req.send()));
+				}
+				catch(HttpException ex)
+				{
+					boolean written = pc.written;
+					discard(pc);
+
+					// a POST that reached the server may have been applied, so only resend it
+					// when none of it was written
+					if(written && "POST".equalsIgnoreCase(req.method())) throw ex;
+
+					// server probably closed the idle connection, try again with a new one
+					logger.log(Level.FINE, "Stale pooled connection, reconnecting", ex);
+				}
+			}
+
+			pc.delegate = createConnection(req);
+			pc.written = false;
+			HttpResponse resp = null;
+			try
+			{
+				resp = checkResponse(req, req.send());
+			}
+			catch(RuntimeException ex)
+			{
+				discard(pc);
+				throw ex;
+			}
+			return finish(hp, req, pc, resp);
+		}
+		finally
+		{
+			hp.release();
+		}
+	}
+
+	/**
+	 * Send the request with a body streamed by the writer.  The body can't be replayed so a
+	 * fresh connection is used rather than risking a stale idle one; it is pooled afterwards.
+	 *
+	 * @param req must not be a POST, see writeStreaming
+	 * @param body
+	 * @return
+	 */
+	public HttpResponse send(HttpRequest req, BodyWriter body)
+	{
+		if(body == null)
+		{
+			return send(req);
+		}
+
+		HostPool hp = getHostPool(req);
+
+		hp.lease();
+
+		HttpConnection conn = null;
+		try
+		{
+			req.connectionKeepAlive(true);
+
+			conn = createConnection(req);
+			HttpResponse resp = checkResponse(req, writeStreaming(conn, req, body));
+
+			if(resp.isConnectionPersistent() && hp.offerIdle(conn))
+			{
+				conn = null;
+			}
+
+			return resp;
+		}
+		catch(java.io.IOException ex)
+		{
+			throw new HttpException(ex);
+		}
+		finally
+		{
+			if(conn != null)
+			{
+				discarded.incrementAndGet();
+				closeQuietly(conn);
+			}
+			hp.release();
+		}
+	}
+
+	/**
+	 * Write the request headers and a chunk encoded body to the connection and read the response.
+	 * Jodd adds Content-Length: 0 to bodiless POSTs, which conflicts with chunking, so the request
+	 * must use another method.  An IOException from the body writer itself, rather than from the
+	 * socket, is thrown as a ClientHttpException.
+	 *
+	 * @param conn
+	 * @param req
+	 * @param body
+	 * @return
+	 * @throws java.io.IOException
+	 */
+	public static HttpResponse writeStreaming(HttpConnection conn, HttpRequest req, BodyWriter body) throws java.io.IOException
+	{
+		if("POST".equalsIgnoreCase(req.method()))
+		{
+			throw new IllegalArgumentException("Streamed bodies can not be sent with POST");
+		}
+
+		req.headerOverwrite("Transfer-Encoding", "chunked");
+
+		SocketOutputStream sock = new SocketOutputStream(conn.getOutputStream());
+		java.io.OutputStream out = new java.io.BufferedOutputStream(sock);
+		req.sendTo(out);
+
+		ChunkedOutputStream chunked = new ChunkedOutputStream(out);
+		try
+		{
+			body.writeTo(chunked);
+		}
+		catch(IOException ex)
+		{
+			if(sock.failed) throw ex;
+			throw new ClientHttpException("Error writing the request body", ex);
+		}
+		chunked.finish();
+
+		return HttpResponse.readFrom(conn.getInputStream());
+	}
+
+	/**
+	 * Jodd returns an empty response, rather than failing, when the server closes the
+	 * connection before answering.
+	 */
+	protected HttpResponse checkResponse(HttpRequest req, HttpResponse resp)
+	{
+		if(resp.statusCode() == 0)
+		{
+			throw new HttpException("Connection closed without a response: " + req.hostUrl());
+		}
+		return resp;
+	}
+
+	/**
+	 * Hand the connection back to the pool if the server kept it open.
+	 */
+	protected HttpResponse finish(HostPool hp, HttpRequest req, PooledConnection pc, HttpResponse resp)
+	{
+		// jodd closes and drops the connection itself when the response was not persistent
+		if(req.connection() != null)
+		{
+			pc.recycleTo = hp;
+			// detaches the connection from the request, see PooledConnection.close
+			resp.close();
+		}
+		else
+		{
+			discarded.incrementAndGet();
+		}
+
+		return resp;
+	}
+
+	protected HttpConnection createConnection(HttpRequest req)
+	{
+		try
+		{
+			HttpConnection conn = provider.createHttpConnection(req);
+			created.incrementAndGet();
+			return conn;
+		}
+		catch(java.io.IOException ex)
+		{
+			throw new HttpException("Can't connect to: " + req.hostUrl(), ex);
+		}
+	}
+
+	protected void discard(PooledConnection pc)
+	{
+		discarded.incrementAndGet();
+		pc.close();
+	}
+
+	protected synchronized HostPool getHostPool(HttpRequest req)
+	{
+		if(closed)
+		{
+			throw new ClientHttpException("Connection pool is closed");
+		}
+
+		String key = req.protocol() + "://" + req.host() + ":" + req.port();
+		HostPool hp = hosts.get(key);
+		if(hp == null)
+		{
+			hp = new HostPool(maxPerHost);
+			hosts.put(key, hp);
+		}
+
+		if(evictor == null && idleTimeoutMillis > 0)
+		{
+			startEvictor();
+		}
+		return hp;
+	}
+
+	/**
+	 * Run evictIdleConnections in the background, twice per idle timeout.
+	 */
+	private void startEvictor()
+	{
+		long period = Math.max(1000L, idleTimeoutMillis/2);
+		evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "elastic-pool-evict");
+			t.setDaemon(true);
+			return t;
+		});
+		evictor.scheduleWithFixedDelay(() -> {
+			try
+			{
+				evictIdleConnections();
+			}
+			catch(RuntimeException ex)
+			{
+				logger.log(Level.WARNING, "Error evicting idle connections", ex);
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Close all idle connections that have been unused for longer than the idle timeout.
+	 *
+	 * @return the number of connections closed
+	 */
+	public int evictIdleConnections()
+	{
+		HostPool pools[] = null;
+		synchronized(this)
+		{
+			pools = hosts.values().toArray(new HostPool[0]);
+		}
+
+		int cnt = 0;
+		for(int i=0; i<pools.length; i++)
+		{
+			cnt += pools[i].evictExpired();
+		}
+		return cnt;
+	}
+
+	/**
+	 * Close every idle connection and refuse further requests.
+	 */
+	public void close()
+	{
+		HostPool pools[] = null;
+		synchronized(this)
+		{
+			closed = true;
+			pools = hosts.values().toArray(new HostPool[0]);
+			hosts.clear();
+
+			if(evictor != null)
+			{
+				evictor.shutdownNow();
+				evictor = null;
+			}
+		}
+
+		for(int i=0; i<pools.length; i++)
+		{
+			pools[i].closeIdle();
+		}
+	}
+
+	/**
+	 * Number of connections opened by the pool.
+	 *
+	 * @return
+	 */
+	public long getCreatedCount()
+	{
+		return created.get();
+	}
+
+	/**
+	 * Number of requests that went over an already open connection.
+	 *
+	 * @return
+	 */
+	public long getReusedCount()
+	{
+		return reused.get();
+	}
+
+	/**
+	 * Number of idle connections closed because they exceeded the idle timeout.
+	 *
+	 * @return
+	 */
+	public long getEvictedCount()
+	{
+		return evicted.get();
+	}
+
+	/**
+	 * Number of connections closed after an error or a non persistent response.
+	 *
+	 * @return
+	 */
+	public long getDiscardedCount()
+	{
+		return discarded.get();
+	}
+
+	/**
+	 * Number of connections currently sitting idle in the pool.
+	 *
+	 * @return
+	 */
+	public synchronized int getIdleCount()
+	{
+		int cnt = 0;
+		for(HostPool hp : hosts.values())
+		{
+			cnt += hp.idleCount();
+		}
+		return cnt;
+	}
+
+	/**
+	 * Number of connections currently in use.
+	 *
+	 * @return
+	 */
+	public synchronized int getLeasedCount()
+	{
+		int cnt = 0;
+		for(HostPool hp : hosts.values())
+		{
+			cnt += hp.leasedCount();
+		}
+		return cnt;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "ConnectionPool[created=" + getCreatedCount() + ", reused=" + getReusedCount() + ", evicted=" + getEvictedCount()
+		     + ", discarded=" + getDiscardedCount() + ", idle=" + getIdleCount() + ", leased=" + getLeasedCount() + "]";
+	}
+
+	/**
+	 * The idle connections and lease permits for one host.
+	 */
+	protected class HostPool
+	{
+		private final ArrayDeque<IdleConnection> idle = new ArrayDeque<IdleConnection>();
+		private final Semaphore permits;
+		private final int max;
+
+		HostPool(int max)
+		{
+			this.max = max;
+			permits = new Semaphore(max, true);
+		}
+
+		void lease()
+		{
+			try
+			{
+				if(!permits.tryAcquire(leaseTimeoutMillis, TimeUnit.MILLISECONDS))
+				{
+					throw new ClientHttpException("Timed out waiting for a pooled connection");
+				}
+			}
+			catch(InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+				throw new ClientHttpException("Interrupted waiting for a pooled connection", ex);
+			}
+		}
+
+		void release()
+		{
+			permits.release();
+		}
+
+		int leasedCount()
+		{
+			return max - permits.availablePermits();
+		}
+
+		/**
+		 * Most recently used first so that surplus connections age out.
+		 */
+		HttpConnection pollIdle()
+		{
+			long now = 0;
+			IdleConnection ic = null;
+			while(true)
+			{
+				now = System.currentTimeMillis();
+				synchronized(idle)
+				{
+					ic = idle.pollFirst();
+				}
+				if(ic == null) return null;
+
+				if(now - ic.since > idleTimeoutMillis)
+				{
+					evicted.incrementAndGet();
+					closeQuietly(ic.conn);
+				}
+				else if(validateAfterMillis >= 0 && now - ic.since > validateAfterMillis && isStale(ic.conn))
+				{
+					discarded.incrementAndGet();
+					closeQuietly(ic.conn);
+				}
+				else
+				{
+					return ic.conn;
+				}
+			}
+		}
+
+		boolean offerIdle(HttpConnection conn)
+		{
+			synchronized(idle)
+			{
+				if(closed || idle.size() >= max)
+				{
+					return false;
+				}
+				idle.addFirst(new IdleConnection(conn, System.currentTimeMillis()));
+			}
+			return true;
+		}
+
+		int idleCount()
+		{
+			synchronized(idle)
+			{
+				return idle.size();
+			}
+		}
+
+		int evictExpired()
+		{
+			long now = System.currentTimeMillis();
+			int cnt = 0;
+			synchronized(idle)
+			{
+				Iterator<IdleConnection> it = idle.iterator();
+				IdleConnection ic = null;
+				while(it.hasNext())
+				{
+					ic = it.next();
+					if(now - ic.since > idleTimeoutMillis)
+					{
+						it.remove();
+						closeQuietly(ic.conn);
+						cnt++;
+					}
+				}
+			}
+			evicted.addAndGet(cnt);
+			return cnt;
+		}
+
+		void closeIdle()
+		{
+			synchronized(idle)
+			{
+				IdleConnection ic = null;
+				while((ic = idle.pollFirst()) != null)
+				{
+					closeQuietly(ic.conn);
+				}
+			}
+		}
+	}
+
+	/**
+	 * True if the server closed the connection, or sent something unasked, while it sat idle.
+	 * Reads with a 1 ms timeout; a timeout means the connection is still open and quiet.
+	 */
+	protected static boolean isStale(HttpConnection conn)
+	{
+		if(!(conn instanceof SocketHttpConnection)) return false;
+
+		Socket socket = ((SocketHttpConnection)conn).getSocket();
+		if(socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) return true;
+
+		int timeout = 0;
+		try
+		{
+			timeout = socket.getSoTimeout();
+			socket.setSoTimeout(1);
+			try
+			{
+				// -1 for a close, and any data on an idle connection can't be trusted either
+				socket.getInputStream().read();
+				return true;
+			}
+			catch(SocketTimeoutException ex)
+			{
+				return false;
+			}
+			finally
+			{
+				socket.setSoTimeout(timeout);
+			}
+		}
+		catch(IOException ex)
+		{
+			return true;
+		}
+	}
+
+	private static void closeQuietly(HttpConnection conn)
+	{
+		try
+		{
+			conn.close();
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.FINE, "Error closing connection", ex);
+		}
+	}
+
+	/**
+	 * The connection handed to jodd.  Closing it returns the real connection to the pool
+	 * when the response was persistent, otherwise the real connection is closed.  Notes
+	 * whether any of the request reached the socket, so a failed POST is only resent when
+	 * it did not.
+	 */
+	protected static class PooledConnection implements HttpConnection
+	{
+		HttpConnection delegate;
+		HostPool recycleTo;
+		volatile boolean written;
+
+		public void init() throws java.io.IOException
+		{
+			delegate.init();
+		}
+
+		public java.io.OutputStream getOutputStream() throws java.io.IOException
+		{
+			return new java.io.FilterOutputStream(delegate.getOutputStream())
+			{
+				@Override
+				public void write(int b) throws java.io.IOException
+				{
+					out.write(b);
+					written = true;
+				}
+
+				@Override
+				public void write(byte b[], int off, int len) throws java.io.IOException
+				{
+					out.write(b, off, len);
+					if(len > 0) written = true;
+				}
+			};
+		}
+
+		public java.io.InputStream getInputStream() throws java.io.IOException
+		{
+			return delegate.getInputStream();
+		}
+
+		public void setTimeout(int milliseconds)
+		{
+			delegate.setTimeout(milliseconds);
+		}
+
+		public void close()
+		{
+			HttpConnection conn = delegate;
+			HostPool hp = recycleTo;
+			delegate = null;
+			recycleTo = null;
+
+			if(conn == null) return;
+
+			if(hp == null || !hp.offerIdle(conn))
+			{
+				closeQuietly(conn);
+			}
+		}
+	}
+
+	/**
+	 * Notes whether writing to the socket failed, to tell socket errors from body writer errors.
+	 */
+	private static class SocketOutputStream extends java.io.FilterOutputStream
+	{
+		boolean failed = false;
+
+		SocketOutputStream(java.io.OutputStream out)
+		{
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			try
+			{
+				out.write(b);
+			}
+			catch(IOException ex)
+			{
+				failed = true;
+				throw ex;
+			}
+		}
+
+		@Override
+		public void write(byte b[], int off, int len) throws IOException
+		{
+			try
+			{
+				out.write(b, off, len);
+			}
+			catch(IOException ex)
+			{
+				failed = true;
+				throw ex;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			try
+			{
+				out.flush();
+			}
+			catch(IOException ex)
+			{
+				failed = true;
+				throw ex;
+			}
+		}
+	}
+
+	/**
+	 * An idle connection and the time it was returned to the pool.
+	 */
+	private static class IdleConnection
+	{
+		final HttpConnection conn;
+		final long since;
+
+		IdleConnection(HttpConnection conn, long since)
+		{
+			this.conn = conn;
+			this.since = since;
+		}
+	}
+}
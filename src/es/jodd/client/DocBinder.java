@@ -0,0 +1,635 @@
+package es.jodd.client;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jodd.json.JsonArray;
+import jodd.json.JsonObject;
+import jodd.json.JsonParser;
+import jodd.json.meta.JSON;
+
+/**
+ * Binds JSON objects straight from the response bytes into instances of a class, without
+ * building a JsonObject or decoding the source to a String first.  Plain classes are created
+ * with their no-arg constructor and have their fields set, records are created with their
+ * canonical constructor.  Field names can be changed, or fields left out, with Jodd's @JSON
+ * annotation.  The fields, their types and a reader for each are worked out once per class
+ * and cached, so binding is a walk of the bytes and a field set per value.  JSON fields with
+ * no matching Java field are skipped.
+ *
+ * @author aholinch
+ *
+ */
+public class DocBinder<T>
+{
+	private static final ConcurrentHashMap<Class<?>,DocBinder<?>> binders = new ConcurrentHashMap<Class<?>,DocBinder<?>>();
+
+	private static final byte SOURCE[] = "_source".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Class.isRecord and Class.getRecordComponents, null before Java 16.
+	 */
+	private static final Method IS_RECORD;
+
+	private static final Method RECORD_COMPONENTS;
+
+	static
+	{
+		Method isRecord = null;
+		Method components = null;
+		try
+		{
+			isRecord = Class.class.getMethod("isRecord");
+			components = Class.class.getMethod("getRecordComponents");
+		}
+		catch(NoSuchMethodException ex)
+		{
+			// no records on this JVM
+		}
+		IS_RECORD = isRecord;
+		RECORD_COMPONENTS = components;
+	}
+
+	protected final Class<T> type;
+
+	private final Property props[];
+
+	private final Constructor<T> ctor;
+
+	private final boolean record;
+
+	/**
+	 * Returns the binder for the class, building it the first time the class is seen.
+	 *
+	 * @param cls
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> DocBinder<T> forClass(Class<T> cls)
+	{
+		DocBinder<?> b = binders.get(cls);
+		if(b == null)
+		{
+			b = binders.computeIfAbsent(cls, DocBinder::new);
+		}
+		return (DocBinder<T>)b;
+	}
+
+	/**
+	 * Use forClass so the binder is shared.
+	 *
+	 * @param cls
+	 */
+	protected DocBinder(Class<T> cls)
+	{
+		type = cls;
+
+		if(cls.isInterface() || Modifier.isAbstract(cls.getModifiers()) || cls.isPrimitive() || cls.isArray())
+		{
+			throw new IllegalArgumentException("Can't bind to " + cls.getName());
+		}
+
+		try
+		{
+			record = isRecord(cls);
+			if(record)
+			{
+				Object comps[] = (Object[])RECORD_COMPONENTS.invoke(cls);
+				Class<?> types[] = new Class<?>[comps.length];
+				List<Property> list = new ArrayList<Property>();
+				Method getName = null;
+				Method getType = null;
+				Method getGenericType = null;
+				for(int i=0; i<comps.length; i++)
+				{
+					if(getName == null)
+					{
+						Class<?> rc = comps[i].getClass();
+						getName = rc.getMethod("getName");
+						getType = rc.getMethod("getType");
+						getGenericType = rc.getMethod("getGenericType");
+					}
+					types[i] = (Class<?>)getType.invoke(comps[i]);
+
+					// annotations on a component are copied to its private field
+					Field f = cls.getDeclaredField((String)getName.invoke(comps[i]));
+					Property p = property(f, (Type)getGenericType.invoke(comps[i]));
+					if(p != null)
+					{
+						p.index = i;
+						list.add(p);
+					}
+				}
+				props = list.toArray(new Property[list.size()]);
+				ctor = cls.getDeclaredConstructor(types);
+			}
+			else
+			{
+				List<Property> list = new ArrayList<Property>();
+				Class<?> c = cls;
+				int mods = 0;
+				while(c != null && c != Object.class)
+				{
+					for(Field f : c.getDeclaredFields())
+					{
+						mods = f.getModifiers();
+						if(Modifier.isStatic(mods) || Modifier.isTransient(mods) || Modifier.isFinal(mods) || f.isSynthetic()) continue;
+
+						Property p = property(f, f.getGenericType());
+						if(p != null)
+						{
+							f.setAccessible(true);
+							list.add(p);
+						}
+					}
+					c = c.getSuperclass();
+				}
+				props = list.toArray(new Property[list.size()]);
+				ctor = cls.getDeclaredConstructor();
+			}
+			ctor.setAccessible(true);
+		}
+		catch(NoSuchMethodException ex)
+		{
+			throw new IllegalArgumentException(cls.getName() + " needs a no-arg constructor to be bound", ex);
+		}
+		catch(ReflectiveOperationException ex)
+		{
+			throw new IllegalArgumentException("Can't bind to " + cls.getName(), ex);
+		}
+	}
+
+	public Class<T> getType()
+	{
+		return type;
+	}
+
+	/**
+	 * Bind the JSON object in the buffer.
+	 *
+	 * @param buf
+	 * @return
+	 */
+	public T bind(byte buf[])
+	{
+		return bind(new JsonPullParser(buf));
+	}
+
+	/**
+	 * Bind the JSON object in a slice of the buffer.
+	 *
+	 * @param buf
+	 * @param off
+	 * @param len
+	 * @return
+	 */
+	public T bind(byte buf[], int off, int len)
+	{
+		return bind(new JsonPullParser(buf, off, len));
+	}
+
+	/**
+	 * Bind the _source of a document as returned by GET index/_doc/id, or of a search hit.
+	 *
+	 * @param buf
+	 * @return null if there is no _source
+	 */
+	public T bindSource(byte buf[])
+	{
+		JsonPullParser p = new JsonPullParser(buf);
+		p.beginObject();
+		while(p.nextField())
+		{
+			if(p.fieldIs(SOURCE)) return bind(p);
+			p.skipValue();
+		}
+		return null;
+	}
+
+	/**
+	 * Bind the object starting at the parser's position, null for a JSON null.
+	 *
+	 * @param p
+	 * @return
+	 */
+	public T bind(JsonPullParser p)
+	{
+		if(p.nextIsNull()) return null;
+
+		Object args[] = null;
+		T obj = null;
+		try
+		{
+			if(record)
+			{
+				args = new Object[ctor.getParameterCount()];
+				Class<?> types[] = ctor.getParameterTypes();
+				for(int i=0; i<types.length; i++)
+				{
+					if(types[i].isPrimitive()) args[i] = defaultValue(types[i]);
+				}
+			}
+			else
+			{
+				obj = ctor.newInstance();
+			}
+		}
+		catch(ReflectiveOperationException ex)
+		{
+			throw new IllegalArgumentException("Can't create " + type.getName(), ex);
+		}
+
+		int size = props.length;
+		Property prop = null;
+		Object val = null;
+
+		p.beginObject();
+		while(p.nextField())
+		{
+			prop = null;
+			for(int i=0; i<size; i++)
+			{
+				if(p.fieldIs(props[i].name))
+				{
+					prop = props[i];
+					break;
+				}
+			}
+
+			if(prop == null)
+			{
+				p.skipValue();
+				continue;
+			}
+
+			try
+			{
+				val = prop.reader.read(p);
+				if(val == null && prop.primitive) continue;
+
+				if(record)
+				{
+					args[prop.index] = val;
+				}
+				else
+				{
+					prop.field.set(obj, val);
+				}
+			}
+			catch(IllegalAccessException | RuntimeException ex)
+			{
+				throw new IllegalArgumentException("Can't bind " + prop.field.getName() + " of " + type.getName(), ex);
+			}
+		}
+
+		if(record)
+		{
+			try
+			{
+				obj = ctor.newInstance(args);
+			}
+			catch(ReflectiveOperationException ex)
+			{
+				throw new IllegalArgumentException("Can't create " + type.getName(), ex);
+			}
+		}
+
+		return obj;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "DocBinder[" + type.getName() + ", fields=" + props.length + "]";
+	}
+
+	/**
+	 * Build the property for a field, null if @JSON leaves it out.
+	 */
+	private static Property property(Field f, Type genericType)
+	{
+		String name = f.getName();
+		JSON ann = f.getAnnotation(JSON.class);
+		if(ann != null)
+		{
+			if(!ann.include()) return null;
+			if(ann.name() != null && ann.name().length() > 0) name = ann.name();
+		}
+
+		Property p = new Property();
+		p.name = name.getBytes(StandardCharsets.UTF_8);
+		p.field = f;
+		p.primitive = f.getType().isPrimitive();
+		p.reader = readerFor(genericType);
+		return p;
+	}
+
+	/**
+	 * Work out how to read a value of the type.
+	 */
+	private static ValueReader readerFor(Type t)
+	{
+		if(t instanceof ParameterizedType)
+		{
+			ParameterizedType pt = (ParameterizedType)t;
+			Class<?> raw = (Class<?>)pt.getRawType();
+			Type args[] = pt.getActualTypeArguments();
+
+			if(Collection.class.isAssignableFrom(raw) && args.length == 1)
+			{
+				return collectionReader(raw, readerFor(args[0]));
+			}
+			if(Map.class.isAssignableFrom(raw) && args.length == 2 && args[0] == String.class)
+			{
+				final ValueReader values = readerFor(args[1]);
+				return p -> {
+					if(p.nextIsNull()) return null;
+					Map<String,Object> map = new LinkedHashMap<String,Object>();
+					p.beginObject();
+					while(p.nextField())
+					{
+						map.put(p.fieldName(), values.read(p));
+					}
+					return map;
+				};
+			}
+			return readerFor(raw);
+		}
+
+		if(!(t instanceof Class))
+		{
+			// type variables and wildcards
+			return DocBinder::readAny;
+		}
+
+		final Class<?> c = (Class<?>)t;
+
+		if(c == String.class) return DocBinder::readText;
+		if(c == int.class || c == Integer.class) return p -> isNull(p) ? null : (Object)(int)readLong(p);
+		if(c == long.class || c == Long.class) return p -> isNull(p) ? null : (Object)readLong(p);
+		if(c == double.class || c == Double.class) return p -> isNull(p) ? null : (Object)readDouble(p);
+		if(c == float.class || c == Float.class) return p -> isNull(p) ? null : (Object)(float)readDouble(p);
+		if(c == boolean.class || c == Boolean.class) return p -> isNull(p) ? null : (Object)readBoolean(p);
+		if(c == short.class || c == Short.class) return p -> isNull(p) ? null : (Object)(short)readLong(p);
+		if(c == byte.class || c == Byte.class) return p -> isNull(p) ? null : (Object)(byte)readLong(p);
+		if(c == char.class || c == Character.class)
+		{
+			return p -> {
+				String str = p.readString();
+				if(str == null || str.length() == 0) return null;
+				return str.charAt(0);
+			};
+		}
+		if(c == BigDecimal.class) return p -> isNull(p) ? null : new BigDecimal(readNumberText(p));
+		if(c == BigInteger.class) return p -> isNull(p) ? null : new BigInteger(readNumberText(p));
+		if(c.isEnum())
+		{
+			return p -> {
+				String str = p.readString();
+				if(str == null) return null;
+				return enumValue(c, str);
+			};
+		}
+		if(c == Object.class) return DocBinder::readAny;
+		if(c == JsonObject.class)
+		{
+			return p -> isNull(p) ? null : JsonParser.create().parseAsJsonObject(readRaw(p));
+		}
+		if(c == JsonArray.class)
+		{
+			return p -> isNull(p) ? null : JsonParser.create().parseAsJsonArray(readRaw(p));
+		}
+		if(c.isArray())
+		{
+			final Class<?> comp = c.getComponentType();
+			final ValueReader elems = readerFor(comp);
+			return p -> {
+				if(p.nextIsNull()) return null;
+				List<Object> list = new ArrayList<Object>();
+				p.beginArray();
+				while(p.nextElement())
+				{
+					list.add(elems.read(p));
+				}
+				Object arr = Array.newInstance(comp, list.size());
+				Object val = null;
+				for(int i=0; i<list.size(); i++)
+				{
+					val = list.get(i);
+					if(val != null || !comp.isPrimitive()) Array.set(arr, i, val);
+				}
+				return arr;
+			};
+		}
+		if(Collection.class.isAssignableFrom(c)) return collectionReader(c, DocBinder::readAny);
+		if(Map.class.isAssignableFrom(c)) return DocBinder::readAny;
+
+		if(c.getName().startsWith("java.") || c.isInterface() || Modifier.isAbstract(c.getModifiers()))
+		{
+			// leave anything else to jodd, e.g. dates
+			return p -> isNull(p) ? null : JsonParser.create().parse(readRaw(p), c);
+		}
+
+		// a nested object, looked up when first read so classes that refer to themselves work
+		return new ValueReader() {
+			private DocBinder<?> nested = null;
+
+			@Override
+			public Object read(JsonPullParser p)
+			{
+				if(nested == null) nested = forClass(c);
+				return nested.bind(p);
+			}
+		};
+	}
+
+	private static ValueReader collectionReader(Class<?> raw, final ValueReader elems)
+	{
+		final boolean sorted = SortedSet.class.isAssignableFrom(raw);
+		final boolean set = Set.class.isAssignableFrom(raw);
+		return p -> {
+			if(p.nextIsNull()) return null;
+			Collection<Object> coll = null;
+			if(sorted) coll = new TreeSet<Object>();
+			else if(set) coll = new LinkedHashSet<Object>();
+			else coll = new ArrayList<Object>();
+			p.beginArray();
+			while(p.nextElement())
+			{
+				coll.add(elems.read(p));
+			}
+			return coll;
+		};
+	}
+
+	/**
+	 * Read any value as a Map, List, String, Long, Double, Boolean or null.
+	 *
+	 * @param p
+	 * @return
+	 */
+	public static Object readAny(JsonPullParser p)
+	{
+		int c = p.peek();
+		if(c == '{')
+		{
+			Map<String,Object> map = new LinkedHashMap<String,Object>();
+			p.beginObject();
+			while(p.nextField())
+			{
+				map.put(p.fieldName(), readAny(p));
+			}
+			return map;
+		}
+		if(c == '[')
+		{
+			List<Object> list = new ArrayList<Object>();
+			p.beginArray();
+			while(p.nextElement())
+			{
+				list.add(readAny(p));
+			}
+			return list;
+		}
+		if(c == '"') return p.readString();
+		if(c == 'n')
+		{
+			p.skipValue();
+			return null;
+		}
+		if(c == 't' || c == 'f') return readBoolean(p);
+
+		String num = readNumberText(p);
+		if(num.indexOf('.') >= 0 || num.indexOf('e') >= 0 || num.indexOf('E') >= 0)
+		{
+			return Double.parseDouble(num);
+		}
+		try
+		{
+			return Long.parseLong(num);
+		}
+		catch(NumberFormatException ex)
+		{
+			return new BigInteger(num);
+		}
+	}
+
+	private static boolean isNull(JsonPullParser p)
+	{
+		return p.nextIsNull();
+	}
+
+	/**
+	 * A string field, with numbers and booleans taken as their text.
+	 */
+	private static Object readText(JsonPullParser p)
+	{
+		int c = p.peek();
+		if(c == '"' || c == 'n') return p.readString();
+		if(c == '{' || c == '[') return readRaw(p);
+		return readNumberText(p);
+	}
+
+	/**
+	 * Numbers may come as strings, e.g. from a keyword field.
+	 */
+	private static long readLong(JsonPullParser p)
+	{
+		if(p.peek() == '"') return Long.parseLong(p.readString().trim());
+		return p.readLong();
+	}
+
+	private static double readDouble(JsonPullParser p)
+	{
+		if(p.peek() == '"') return Double.parseDouble(p.readString().trim());
+		return p.readDouble();
+	}
+
+	private static boolean readBoolean(JsonPullParser p)
+	{
+		if(p.peek() == '"') return Boolean.parseBoolean(p.readString().trim());
+		int start = p.skipValue();
+		return p.buf[start] == 't';
+	}
+
+	private static String readNumberText(JsonPullParser p)
+	{
+		if(p.peek() == '"') return p.readString().trim();
+		int start = p.skipValue();
+		return new String(p.buf, start, p.position()-start, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * The next value as JSON text.
+	 */
+	private static String readRaw(JsonPullParser p)
+	{
+		int start = p.skipValue();
+		return new String(p.buf, start, p.position()-start, StandardCharsets.UTF_8);
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static Object enumValue(Class c, String name)
+	{
+		return Enum.valueOf(c, name);
+	}
+
+	private static Object defaultValue(Class<?> c)
+	{
+		if(c == boolean.class) return Boolean.FALSE;
+		if(c == char.class) return (char)0;
+		if(c == byte.class) return (byte)0;
+		if(c == short.class) return (short)0;
+		if(c == int.class) return 0;
+		if(c == long.class) return 0L;
+		if(c == float.class) return 0f;
+		return 0d;
+	}
+
+	private static boolean isRecord(Class<?> cls) throws ReflectiveOperationException
+	{
+		return IS_RECORD != null && (Boolean)IS_RECORD.invoke(cls);
+	}
+
+	/**
+	 * Reads one JSON value as the Java type of a field.
+	 */
+	private interface ValueReader
+	{
+		Object read(JsonPullParser p);
+	}
+
+	/**
+	 * A bound field.
+	 */
+	private static class Property
+	{
+		byte name[];
+
+		Field field;
+
+		boolean primitive;
+
+		int index;
+
+		ValueReader reader;
+	}
+}
@@ -1,15 +1,41 @@
 package es.jodd.client;
 
-import java.io.StringWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
 import jodd.http.HttpBrowser;
+import jodd.http.HttpConnection;
+import jodd.http.HttpConnectionProvider;
+import jodd.http.HttpException;
 import jodd.http.HttpRequest;
 import jodd.http.HttpResponse;
 import jodd.json.JsonArray;
@@ -29,6 +55,21 @@ public class ElasticClient
 	 */
 	protected HttpBrowser httpClient;
 
+	/**
+	 * Pool of keep-alive connections.  When null requests go through the httpClient.
+	 */
+	protected ConnectionPool connectionPool;
+
+	/**
+	 * Spreads requests over several nodes.  When null every request goes to the baseURL.
+	 */
+	protected NodeSelector nodeSelector;
+
+	/**
+	 * How often dead nodes are checked to see if they have recovered.
+	 */
+	protected long healthCheckInterval = 30000L;
+
 	/**
 	 * The baseURL that combines protocol, hostname, and port.
 	 */
@@ -39,11 +80,142 @@ public class ElasticClient
 	 */
 	protected int bulkBatchSize = 10000;
 
+	/**
+	 * The max number of bytes in a single bulk request, 0 for no limit
+	 */
+	protected long bulkMaxBytes = 10L*1024L*1024L;
+
+	/**
+	 * How many times bulk items rejected with 429 or 503 are resent
+	 */
+	protected int bulkMaxRetries = 3;
+
+	/**
+	 * The wait in ms before the first bulk retry, doubled for each later retry
+	 */
+	protected long bulkRetryBackoff = 200L;
+
+	/**
+	 * The max number of bulk requests in flight at once
+	 */
+	protected int bulkConcurrency = 1;
+
+	/**
+	 * Adapts the bulk batch size and concurrency to the cluster, null to use the fixed
+	 * bulkBatchSize and bulkConcurrency.
+	 */
+	protected BulkTuner bulkTuner;
+
 	/**
 	 * The max number of ids to delete in a single request
 	 */
 	protected int deleteByIdBatchSize = 500;
 
+	/**
+	 * Told about every request, e.g. a ClientMetrics.  Null when nothing is listening.
+	 */
+	protected ClientListener listener;
+
+	/**
+	 * Log request urls, bodies and response codes at INFO.  Off by default since a body can be
+	 * a whole query or bulk payload.
+	 */
+	protected boolean debugLogging = false;
+
+	/**
+	 * Caches search responses, null when caching is off.
+	 */
+	protected QueryCache queryCache;
+
+	/**
+	 * Share one request between identical searches that are in flight at the same time.
+	 */
+	protected boolean collapseQueries = false;
+
+	/**
+	 * The searches in flight by url and body when collapseQueries is on.
+	 */
+	private final ConcurrentHashMap<String,CompletableFuture<SearchResults>> inFlightQueries = new ConcurrentHashMap<String,CompletableFuture<SearchResults>>();
+
+	private final LongAdder collapsedQueries = new LongAdder();
+
+	/**
+	 * Caches index names and mappings, null when caching is off.
+	 */
+	protected MetadataCache metadataCache;
+
+	/**
+	 * Gzip request bodies of at least compressionThreshold bytes
+	 */
+	protected boolean requestCompression = false;
+
+	/**
+	 * The smallest request body, in bytes, that is gzipped
+	 */
+	protected int compressionThreshold = 1024;
+
+	/**
+	 * The deflate level used for request bodies, 1 (fastest) to 9 (smallest)
+	 */
+	protected int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+	/**
+	 * Ask for gzipped responses and inflate them before they are parsed
+	 */
+	protected boolean responseCompression = false;
+
+	/**
+	 * Runs the async variants of the client methods.  When null a fixed pool of asyncThreads
+	 * daemon threads is created on first use.
+	 */
+	protected Executor asyncExecutor;
+
+	/**
+	 * Number of threads in the default async executor
+	 */
+	protected int asyncThreads = 32;
+
+	/**
+	 * The default async executor, shut down by close.
+	 */
+	private ExecutorService defaultAsyncExecutor = null;
+
+	/**
+	 * How long, in microseconds, getDoc waits for other gets to share an _mget.  0 sends each
+	 * get on its own.
+	 */
+	protected volatile long getBatchWindowMicros = 0;
+
+	/**
+	 * The max number of ids in one batched _mget
+	 */
+	protected int getBatchMaxIDs = 100;
+
+	/**
+	 * Read without a lock on every get, created under the client's lock.
+	 */
+	private volatile GetBatcher getBatcher = null;
+
+	/**
+	 * Decides which failed requests are retried, null to make a single attempt.
+	 */
+	protected RetryPolicy retryPolicy;
+
+	/**
+	 * Failures in a row that open a node's circuit breaker, 0 turns circuit breaking off.
+	 */
+	protected int circuitBreakerThreshold = 0;
+
+	/**
+	 * How long, in ms, an open circuit fails fast before a trial request is let through
+	 */
+	protected long circuitBreakerOpenMillis = 10000L;
+
+	/**
+	 * The circuit breakers by node url.
+	 */
+	private final ConcurrentHashMap<String,CircuitBreaker> breakers = new ConcurrentHashMap<String,CircuitBreaker>();
+
 	/**
 	 * The type of HTTP authentication
 	 */
@@ -65,6 +237,28 @@ public class ElasticClient
 	 */
 	private static final Logger logger = Logger.getLogger(ElasticClient.class.getName());
 
+	/**
+	 * Short escapes for the ASCII chars that need them, null for chars written as is.
+	 */
+	private static final String ASCII_ESCAPES[] = new String[128];
+
+	private static final char HEX[] = "0123456789abcdef".toCharArray();
+
+	static
+	{
+		for(int c=0; c<' '; c++)
+		{
+			ASCII_ESCAPES[c] = "\\u00" + HEX[c>>4] + HEX[c&0xf];
+		}
+		ASCII_ESCAPES['\b'] = "\\b";
+		ASCII_ESCAPES['\t'] = "\\t";
+		ASCII_ESCAPES['\n'] = "\\n";
+		ASCII_ESCAPES['\f'] = "\\f";
+		ASCII_ESCAPES['\r'] = "\\r";
+		ASCII_ESCAPES['"'] = "\\\"";
+		ASCII_ESCAPES['\\'] = "\\\\";
+	}
+
 
 	/**
 	 * Default constructor.
@@ -85,6 +279,17 @@ public class ElasticClient
 		init();
 	}
 
+	/**
+	 * Constructor with a list of node URLs that requests are spread across.
+	 * 
+	 * @param urls
+	 */
+	public ElasticClient(List<String> urls)
+	{
+		init();
+		setNodes(urls);
+	}
+
 	/**
 	 * Initialize the internal http client.
 	 */
@@ -93,731 +298,3165 @@ public class ElasticClient
 		setBaseURL(LOCAL_HOST);
 
 		httpClient = new HttpBrowser();
+
+		connectionPool = new ConnectionPool();
 	}
 
 	protected HttpResponse sendRequest(HttpRequest req)
 	{
-		if(authType != null && authType.equals("basic"))
+		return sendRequest(req, null);
+	}
+
+	/**
+	 * Send the request, streaming the body from the writer when it is not null.  When there is a
+	 * retry policy failed attempts are retried as it allows, except when the body is streamed.
+	 * 
+	 * @param req
+	 * @param body
+	 * @return
+	 */
+	protected HttpResponse sendRequest(HttpRequest req, BodyWriter body)
+	{
+		addAuthHeader(req);
+
+		if(requestCompression)
 		{
-			if(cachedHeader == null)
+			body = compressBody(req, body);
+		}
+
+		if(responseCompression && req.header("Accept-Encoding") == null)
+		{
+			req.header("Accept-Encoding", "gzip");
+		}
+
+		RetryPolicy policy = retryPolicy;
+		HttpResponse resp = null;
+		for(int attempt=0; ; attempt++)
+		{
+			try
 			{
-				String auth = username+":"+password;
-				auth = jodd.util.Base64.encodeToString(auth);
-				auth = "Basic "+auth;
-				cachedHeader = auth;
+				resp = dispatch(req, body);
 			}
-			req.header("Authorization", cachedHeader);
+			catch(HttpException ex)
+			{
+				// a streamed body can't be written twice
+				if(policy == null || body != null || !policy.shouldRetry(req, attempt, 0, ex) || !policy.acquireRetry())
+				{
+					throw ex;
+				}
+				logger.log(Level.WARNING, "Retrying " + req.method() + " " + req.path() + " after error: " + ex.getMessage());
+				sleepBeforeRetry(policy, attempt);
+				continue;
+			}
+
+			if(policy == null) break;
+
+			int status = resp.statusCode();
+			if(status/100 == 2)
+			{
+				policy.recordSuccess();
+				break;
+			}
+
+			if(body != null || !policy.shouldRetry(req, attempt, status, null) || !policy.acquireRetry())
+			{
+				break;
+			}
+			logger.log(Level.WARNING, "Retrying " + req.method() + " " + req.path() + " after status " + status);
+			sleepBeforeRetry(policy, attempt);
 		}
-		return httpClient.sendRequest(req);
+
+		if(resp != null && responseCompression)
+		{
+			// does nothing unless the server sent Content-Encoding: gzip
+			resp.unzip();
+		}
+
+		return resp;
 	}
 
 	/**
-	 * Returns the URL.
+	 * Make one attempt at the request, telling the listener about it.
 	 * 
+	 * @param req
+	 * @param body
 	 * @return
 	 */
-	public String getBaseURL()
+	protected HttpResponse dispatch(HttpRequest req, BodyWriter body)
 	{
-		return baseURL;
+		ClientListener l = listener;
+		String op = null;
+		CountingOutputStream counter[] = null;
+		long start = 0;
+		if(l != null)
+		{
+			op = operationOf(req);
+			if(body != null)
+			{
+				counter = new CountingOutputStream[1];
+				body = countBody(body, counter);
+			}
+			l.requestStarted(op);
+			start = System.nanoTime();
+		}
+
+		HttpResponse resp = null;
+		try
+		{
+			if(nodeSelector != null)
+			{
+				resp = sendToNodes(req, body);
+			}
+			else
+			{
+				resp = sendToBase(req, body);
+			}
+		}
+		finally
+		{
+			if(l != null)
+			{
+				long sent = 0;
+				if(counter != null)
+				{
+					if(counter[0] != null) sent = counter[0].count;
+				}
+				else if(req.body() != null)
+				{
+					// jodd keeps the body as a latin-1 string, one char per byte
+					sent = req.body().length();
+				}
+
+				long received = 0;
+				if(resp != null && resp.body() != null) received = resp.body().length();
+
+				l.requestFinished(op, resp == null ? 0 : resp.statusCode(), System.nanoTime()-start, sent, received);
+			}
+		}
+
+		return resp;
 	}
 
 	/**
-	 * The base URL combines protocol (http|https), hostname, and port number.  The default is http://localhost:9200/.
+	 * Wait out the backoff before a retry.
 	 * 
-	 * @param url
+	 * @param policy
+	 * @param attempt
 	 */
-	public void setBaseURL(String url)
+	protected void sleepBeforeRetry(RetryPolicy policy, int attempt)
 	{
-		baseURL = url;
-		if(baseURL == null || baseURL.trim().length() == 0)
+		long wait = policy.backoffMillis(attempt);
+		if(wait <= 0) return;
+
+		try
 		{
-			baseURL = LOCAL_HOST;
+			Thread.sleep(wait);
 		}
-
-		if(!baseURL.endsWith("/"))
+		catch(InterruptedException ex)
 		{
-			baseURL += "/";
+			Thread.currentThread().interrupt();
+			throw new HttpException("Interrupted waiting to retry", ex);
 		}
 	}
 
-	public int getBulkBatchSize()
+	/**
+	 * Name the operation a request performs from its method and path, one of the ClientListener
+	 * OP constants.
+	 * 
+	 * @param req
+	 * @return
+	 */
+	protected String operationOf(HttpRequest req)
 	{
-		return bulkBatchSize;
-	}
+		String path = req.path();
+		String method = req.method();
+
+		if(path.endsWith("/_search") || path.endsWith("/_msearch")) return ClientListener.OP_SEARCH;
+		if(path.indexOf("/_search/scroll") >= 0) return ClientListener.OP_SCROLL;
+		if(path.endsWith("/_count")) return ClientListener.OP_COUNT;
+		if(path.endsWith("/_bulk")) return ClientListener.OP_BULK;
+		if(path.indexOf("/_doc") >= 0 || path.endsWith("/_mget"))
+		{
+			if("GET".equals(method)) return ClientListener.OP_GET;
+			if("DELETE".equals(method)) return ClientListener.OP_DELETE;
+			return ClientListener.OP_INDEX;
+		}
+		if(path.endsWith("/_pit")) return ClientListener.OP_PIT;
+		if(path.endsWith("/_delete_by_query")) return ClientListener.OP_DELETE_BY_QUERY;
+		if(path.startsWith("/_cat") || path.endsWith("/_mapping")) return ClientListener.OP_METADATA;
 
-	public void setBulkBatchSize(int batch)
-	{
-		bulkBatchSize = batch;
+		return ClientListener.OP_OTHER;
 	}
 
-	public void setUsername(String user)
+	/**
+	 * Wrap a streamed body so the bytes written can be counted.
+	 */
+	private static BodyWriter countBody(final BodyWriter body, final CountingOutputStream counter[])
 	{
-		username = user;
+		return out -> {
+			counter[0] = new CountingOutputStream(out);
+			body.writeTo(counter[0]);
+		};
 	}
 
-	public String getUsername()
+	/**
+	 * Log the message at INFO when debugLogging is on.
+	 * 
+	 * @param msg
+	 */
+	protected void debug(String msg)
 	{
-		return username;
+		if(debugLogging) logger.info(msg);
 	}
 
-	public void setAuthType(String type)
+	/**
+	 * Gzip the request body if it is at least compressionThreshold bytes.  A streamed body is
+	 * always compressed as it is written since its size isn't known up front.
+	 * 
+	 * @param req
+	 * @param body
+	 * @return the writer to stream the body with, null if the body isn't streamed
+	 */
+	protected BodyWriter compressBody(HttpRequest req, final BodyWriter body)
 	{
-		if(type != null)
+		if(req.header("Content-Encoding") != null)
 		{
-			type = type.toLowerCase();
+			// already compressed, e.g. a request that is being resent
+			return body;
 		}
 
-		authType = type;
-	}
+		if(body != null)
+		{
+			req.header("Content-Encoding", "gzip");
+			final int level = compressionLevel;
+			return out -> {
+				GZIPOutputStream gz = new LevelGZIPOutputStream(out, level);
+				body.writeTo(gz);
+				gz.finish();
+			};
+		}
 
-	public String getAuthType()
-	{
-		return authType;
-	}
+		// jodd keeps the encoded body as a latin-1 string, one char per byte
+		String raw = req.body();
+		if(raw == null || raw.length() < compressionThreshold)
+		{
+			return null;
+		}
 
-	public void setPassword(String secret)
-	{
-		password = secret;
+		byte data[] = raw.getBytes(StandardCharsets.ISO_8859_1);
+		ByteArrayOutputStream bout = new ByteArrayOutputStream(Math.max(64, data.length/4));
+		try
+		{
+			GZIPOutputStream gz = new LevelGZIPOutputStream(bout, compressionLevel);
+			gz.write(data);
+			gz.finish();
+		}
+		catch(IOException ex)
+		{
+			// can't happen writing to memory
+			throw new HttpException(ex);
+		}
+
+		req.body(new String(bout.toByteArray(), StandardCharsets.ISO_8859_1));
+		req.header("Content-Encoding", "gzip");
+		return null;
 	}
 
-	public String getPassword()
+	protected void addAuthHeader(HttpRequest req)
 	{
-		// not available;
-		return null;
+		if(authType != null && authType.equals("basic"))
+		{
+			if(cachedHeader == null)
+			{
+				String auth = username+":"+password;
+				auth = jodd.util.Base64.encodeToString(auth);
+				auth = "Basic "+auth;
+				cachedHeader = auth;
+			}
+			req.header("Authorization", cachedHeader);
+		}
 	}
 
 	/**
-	 * Returns the list of index names.
+	 * Send the request over the pool if there is one.
 	 * 
+	 * @param req
+	 * @param body streams the body when not null
 	 * @return
 	 */
-	public List<String> getIndexNames() throws ECException
+	protected HttpResponse transport(HttpRequest req, BodyWriter body)
 	{
-		String url = baseURL +"_cat/indices?format=json";
-		logger.info(url);
+		if(body != null)
+		{
+			if(connectionPool != null)
+			{
+				return connectionPool.send(req, body);
+			}
 
-		HttpRequest req = HttpRequest.get(url);
+			HttpConnection conn = null;
+			try
+			{
+				req.connectionKeepAlive(false);
+				conn = HttpConnectionProvider.get().createHttpConnection(req);
+				return ConnectionPool.writeStreaming(conn, req, body);
+			}
+			catch(IOException ex)
+			{
+				throw new HttpException(ex);
+			}
+			finally
+			{
+				if(conn != null) conn.close();
+			}
+		}
 
-		HttpResponse resp = sendRequest(req);
+		if(connectionPool != null)
+		{
+			return connectionPool.send(req);
+		}
 
-		logResponse("Index name",resp);
-
-		JsonParser jp = new JsonParser();
+		return httpClient.sendRequest(req);
+	}
 
-		JsonArray arr = jp.parseAsJsonArray(resp.bodyText());
+	/**
+	 * Send the request to the baseURL, failing fast while its circuit breaker is open.
+	 * 
+	 * @param req
+	 * @param body
+	 * @return
+	 */
+	protected HttpResponse sendToBase(HttpRequest req, BodyWriter body)
+	{
+		CircuitBreaker cb = breakerFor(baseURL);
+		if(cb == null)
+		{
+			return transport(req, body);
+		}
 
-		List<String> names = null;
+		if(!cb.allowRequest())
+		{
+			throw new CircuitOpenException(baseURL);
+		}
 
-		if(arr != null && arr.size()>0)
+		HttpResponse resp = null;
+		try
 		{
-			int size = arr.size();
-			names = new ArrayList<String>(size);
-			JsonObject obj = null;
+			resp = transport(req, body);
+		}
+		finally
+		{
+			recordOutcome(cb, resp);
+		}
+		return resp;
+	}
 
-			for(int i=0; i<size; i++)
+	/**
+	 * Send the request to the selected node.  Nodes that can't be reached are marked dead and,
+	 * unless the request is a POST or has a streamed body, the next node is tried.  Client side
+	 * failures, such as a pool lease timeout, leave the node alone.  A node whose
+	 * circuit breaker is open is always skipped since nothing was sent to it.
+	 * 
+	 * @param req
+	 * @param body
+	 * @return
+	 */
+	protected HttpResponse sendToNodes(HttpRequest req, BodyWriter body)
+	{
+		int attempts = nodeSelector.getNodes().size();
+		boolean canFailover = body == null && !"POST".equalsIgnoreCase(req.method());
+
+		Node node = null;
+		HttpException last = null;
+
+		for(int i=0; i<attempts; i++)
+		{
+			node = nodeSelector.select();
+			try
 			{
-				obj = arr.getJsonObject(i);
-				names.add(obj.getString("index"));
+				return sendToNode(req, node, body);
+			}
+			catch(HttpException ex)
+			{
+				last = ex;
+				if(!canFailover && !(ex instanceof CircuitOpenException)) break;
 			}
 		}
-		return names;
+
+		throw last;
 	}
 
-	public Map<String,String> getMappings(String index) throws ECException
+	protected HttpResponse sendToNode(HttpRequest req, Node node, BodyWriter body)
 	{
-		Map<String,String> types = new HashMap<String,String>();
-
-		String url = baseURL + index + "/";
-		logger.info(url);
-		HttpRequest req = HttpRequest.get(url);
-		HttpResponse resp = sendRequest(req);
+		CircuitBreaker cb = breakerFor(node.getURL());
+		if(cb != null && !cb.allowRequest())
+		{
+			throw new CircuitOpenException(node.getURL());
+		}
 
-		logResponse("mappings",resp);
-		JsonParser jp = new JsonParser();
+		req.protocol(node.getProtocol());
+		req.host(node.getHost());
+		req.port(node.getPort());
 
-		JsonObject obj = jp.parseAsJsonObject(resp.bodyText());
-		obj = obj.getJsonObject(index);
-		obj = obj.getJsonObject("mappings");
+		HttpResponse resp = null;
+		node.outstanding.incrementAndGet();
+		try
+		{
+			resp = transport(req, body);
+			return resp;
+		}
+		catch(ClientHttpException ex)
+		{
+			// e.g. a pool lease timeout, nothing to do with the node
+			throw ex;
+		}
+		catch(HttpException ex)
+		{
+			logger.log(Level.WARNING, "Marking node dead: " + node.getURL(), ex);
+			node.markDead();
+			throw ex;
+		}
+		finally
+		{
+			node.outstanding.decrementAndGet();
+			if(cb != null) recordOutcome(cb, resp);
+		}
+	}
 
-		//Map<String,Object> m1 = obj.map();
-		Map<String,Object> m2 = null;
-		Map<String,String> mt = null;
+	/**
+	 * Returns the circuit breaker for the url, null when circuit breaking is off.
+	 */
+	private CircuitBreaker breakerFor(String url)
+	{
+		if(circuitBreakerThreshold <= 0) return null;
 
-		//List<String> typeNames = new ArrayList<String>(m1.keySet());
-		//Collections.sort(typeNames);
-		//int size = typeNames.size();
+		CircuitBreaker cb = breakers.get(url);
+		if(cb == null)
+		{
+			cb = breakers.computeIfAbsent(url, k -> new CircuitBreaker(circuitBreakerThreshold, circuitBreakerOpenMillis));
+		}
+		return cb;
+	}
 
-		List<String> ps = null;
-		String p = null;
-		int np = 0;
+	/**
+	 * No response, a 5xx or a 429 counts against the node.
+	 */
+	private static void recordOutcome(CircuitBreaker cb, HttpResponse resp)
+	{
+		int status = resp == null ? 0 : resp.statusCode();
+		if(status == 0 || status == 429 || status >= 500)
+		{
+			cb.recordFailure();
+		}
+		else
+		{
+			cb.recordSuccess();
+		}
+	}
 
-		String type = null;
-		//JsonObject o1 = null;
-		JsonObject o2 = null;
+	/**
+	 * Health check for a dead node, passes when the node root returns a 2xx.
+	 * 
+	 * @param node
+	 * @return
+	 */
+	protected boolean checkNode(Node node)
+	{
+		HttpRequest req = HttpRequest.get(node.getURL());
+		addAuthHeader(req);
+		HttpResponse resp = transport(req, null);
+		return resp != null && resp.statusCode()/100 == 2;
+	}
 
-		type = index;
-		// for kibana >= 7  there is only one type per index
-		//for(int i=0; i<size; i++)
+	/**
+	 * Spread requests across the listed nodes.  The first node becomes the baseURL.  Dead nodes
+	 * are checked in the background every healthCheckInterval ms.
+	 * 
+	 * @param urls
+	 */
+	public void setNodes(List<String> urls)
+	{
+		NodeSelector ns = new NodeSelector(urls);
+		if(nodeSelector != null)
 		{
-			//type = typeNames.get(i);
-			//o1 = obj.getJsonObject(type);
-			mt = new HashMap<String,String>();
-			//o2 = o1.getJsonObject("properties");
-			o2 = obj.getJsonObject("properties");
-			m2 = o2.map();
-			ps = new ArrayList<String>(m2.keySet());
-			Collections.sort(ps);
-			np = ps.size();
+			ns.setStrategy(nodeSelector.getStrategy());
+			nodeSelector.stopHealthChecks();
+		}
 
-			for(int j=0; j<np; j++)
+		setBaseURL(ns.getNodes().get(0).getURL());
+
+		nodeSelector = ns;
+		nodeSelector.startHealthChecks(this::checkNode, healthCheckInterval);
+	}
+
+	/**
+	 * Returns the node selector, null unless setNodes was called.
+	 * 
+	 * @return
+	 */
+	public NodeSelector getNodeSelector()
+	{
+		return nodeSelector;
+	}
+
+	public long getHealthCheckInterval()
+	{
+		return healthCheckInterval;
+	}
+
+	/**
+	 * Set the health check interval in ms.  Takes effect on the next call to setNodes.
+	 * 
+	 * @param millis
+	 */
+	public void setHealthCheckInterval(long millis)
+	{
+		healthCheckInterval = millis;
+	}
+
+	/**
+	 * Returns the connection pool, may be null.
+	 * 
+	 * @return
+	 */
+	public ConnectionPool getConnectionPool()
+	{
+		return connectionPool;
+	}
+
+	/**
+	 * Set the connection pool used for requests.  Setting null sends each request over a new connection.
+	 * 
+	 * @param pool
+	 */
+	public void setConnectionPool(ConnectionPool pool)
+	{
+		connectionPool = pool;
+	}
+
+	/**
+	 * Close pooled connections and stop node health checks.
+	 */
+	public void close()
+	{
+		if(nodeSelector != null)
+		{
+			nodeSelector.stopHealthChecks();
+		}
+		if(connectionPool != null)
+		{
+			connectionPool.close();
+		}
+		if(metadataCache != null)
+		{
+			metadataCache.close();
+		}
+		synchronized(this)
+		{
+			if(getBatcher != null)
 			{
-				p = ps.get(j);
-				type = o2.getJsonObject(p).getString("type");
-				mt.put(p, type);
+				getBatcher.close();
+				getBatcher = null;
+			}
+			if(defaultAsyncExecutor != null)
+			{
+				defaultAsyncExecutor.shutdown();
+				defaultAsyncExecutor = null;
 			}
 		}
+		httpClient.close();
+	}
+
+	/**
+	 * Returns the executor the async methods run on, creating the default one if none was set.
+	 * 
+	 * @return
+	 */
+	public synchronized Executor getAsyncExecutor()
+	{
+		if(asyncExecutor != null) return asyncExecutor;
+
+		if(defaultAsyncExecutor == null)
+		{
+			final AtomicInteger cnt = new AtomicInteger();
+			defaultAsyncExecutor = Executors.newFixedThreadPool(asyncThreads, r -> {
+				Thread t = new Thread(r, "elastic-async-" + cnt.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		return defaultAsyncExecutor;
+	}
 
-		types = mt;
+	/**
+	 * Set the executor the async methods run on, e.g. a virtual thread per task executor on
+	 * java 21.  Null goes back to the default pool.  The client does not shut down an executor
+	 * set here.
+	 * 
+	 * @param exec
+	 */
+	public synchronized void setAsyncExecutor(Executor exec)
+	{
+		asyncExecutor = exec;
+	}
 
-		return types;
+	public ClientListener getListener()
+	{
+		return listener;
+	}
+
+	/**
+	 * Set a listener told about every request, e.g. a ClientMetrics.  Null removes it.
+	 * 
+	 * @param l
+	 */
+	public void setListener(ClientListener l)
+	{
+		listener = l;
 	}
 
+	public boolean getDebugLogging()
+	{
+		return debugLogging;
+	}
 
 	/**
-	 * Run a match query for the specified value of the field against the index.  Defaults to 10 maxHits.
+	 * Log request urls, bodies and response codes at INFO.  Off by default.
+	 * 
+	 * @param flag
+	 */
+	public void setDebugLogging(boolean flag)
+	{
+		debugLogging = flag;
+	}
+
+	public QueryCache getQueryCache()
+	{
+		return queryCache;
+	}
+
+	/**
+	 * Cache the responses of runMatchQuery and runQueryStringQuery and their raw variants.
+	 * Writes through this client invalidate the written index.  Null, the default, turns
+	 * caching off.
+	 * 
+	 * @param cache
+	 */
+	public void setQueryCache(QueryCache cache)
+	{
+		queryCache = cache;
+	}
+
+	/**
+	 * Drop cached responses for the index after a write.
 	 * 
 	 * @param index
-	 * @param field
-	 * @param value
+	 */
+	protected void invalidateCache(String index)
+	{
+		QueryCache cache = queryCache;
+		if(cache != null) cache.invalidate(index);
+	}
+
+	public boolean getCollapseQueries()
+	{
+		return collapseQueries;
+	}
+
+	/**
+	 * When on, a runMatchQuery or runQueryStringQuery that matches one already in flight waits
+	 * for that request and gets the same SearchResults object rather than sending its own.  The
+	 * shared results should be treated as read only.  Nothing is kept once the request is done.
+	 * Off by default.
+	 * 
+	 * @param flag
+	 */
+	public void setCollapseQueries(boolean flag)
+	{
+		collapseQueries = flag;
+	}
+
+	/**
+	 * Number of searches that shared another caller's request.
+	 * 
 	 * @return
 	 */
-	public String runMatchQueryRaw(String index, String field, String value) throws ECException
+	public long getCollapsedQueries()
 	{
-		return runMatchQueryRaw(index,field,value,10);
+		return collapsedQueries.sum();
+	}
+
+	public MetadataCache getMetadataCache()
+	{
+		return metadataCache;
+	}
+
+	/**
+	 * Cache the results of getIndexNames and getMappings.  Null, the default, turns caching off.
+	 * 
+	 * @param cache
+	 */
+	public void setMetadataCache(MetadataCache cache)
+	{
+		metadataCache = cache;
+	}
+
+	public boolean getRequestCompression()
+	{
+		return requestCompression;
+	}
+
+	/**
+	 * Gzip request bodies of at least compressionThreshold bytes, and every streamed bulk body.
+	 * Off by default.
+	 * 
+	 * @param flag
+	 */
+	public void setRequestCompression(boolean flag)
+	{
+		requestCompression = flag;
+	}
+
+	public int getCompressionThreshold()
+	{
+		return compressionThreshold;
+	}
+
+	/**
+	 * The smallest request body, in bytes, that is gzipped.  Defaults to 1024.
+	 * 
+	 * @param bytes
+	 */
+	public void setCompressionThreshold(int bytes)
+	{
+		if(bytes < 0) bytes = 0;
+		compressionThreshold = bytes;
+	}
+
+	public int getCompressionLevel()
+	{
+		return compressionLevel;
+	}
+
+	/**
+	 * The gzip level for request bodies, 1 (fastest) to 9 (smallest), or -1 for the default.
+	 * 
+	 * @param level
+	 */
+	public void setCompressionLevel(int level)
+	{
+		if(level < -1 || level > 9) level = Deflater.DEFAULT_COMPRESSION;
+		compressionLevel = level;
+	}
+
+	public boolean getResponseCompression()
+	{
+		return responseCompression;
+	}
+
+	/**
+	 * Send Accept-Encoding: gzip and inflate gzipped responses before they are parsed.  Off by
+	 * default.
+	 * 
+	 * @param flag
+	 */
+	public void setResponseCompression(boolean flag)
+	{
+		responseCompression = flag;
+	}
+
+	public int getAsyncThreads()
+	{
+		return asyncThreads;
+	}
+
+	/**
+	 * Number of threads in the default async executor.  Defaults to 32, takes effect when the
+	 * pool is first created.  Calls past this many wait in the executor's queue, and calls past
+	 * the connection pool's maxPerHost wait for a connection.
+	 * 
+	 * @param num
+	 */
+	public void setAsyncThreads(int num)
+	{
+		if(num < 1) num = 1;
+		asyncThreads = num;
+	}
+
+	/**
+	 * Run the call on the async executor.  The future completes with the call's result, or
+	 * exceptionally with the ECException or other exception it threw.
+	 * 
+	 * @param call
+	 * @return
+	 */
+	protected <T> CompletableFuture<T> async(final Callable<T> call)
+	{
+		final CompletableFuture<T> f = new CompletableFuture<T>();
+		try
+		{
+			getAsyncExecutor().execute(() -> {
+				if(f.isDone()) return;
+				try
+				{
+					f.complete(call.call());
+				}
+				catch(Throwable t)
+				{
+					f.completeExceptionally(t);
+				}
+			});
+		}
+		catch(RejectedExecutionException ex)
+		{
+			f.completeExceptionally(new ECException("Async executor rejected the request", ex));
+		}
+		return f;
+	}
+
+	/**
+	 * Returns the URL.
+	 * 
+	 * @return
+	 */
+	public String getBaseURL()
+	{
+		return baseURL;
+	}
+
+	/**
+	 * The base URL combines protocol (http|https), hostname, and port number.  The default is http://localhost:9200/.
+	 * 
+	 * @param url
+	 */
+	public void setBaseURL(String url)
+	{
+		baseURL = url;
+		if(baseURL == null || baseURL.trim().length() == 0)
+		{
+			baseURL = LOCAL_HOST;
+		}
+
+		if(!baseURL.endsWith("/"))
+		{
+			baseURL += "/";
+		}
+	}
+
+	public int getBulkBatchSize()
+	{
+		return bulkBatchSize;
+	}
+
+	public void setBulkBatchSize(int batch)
+	{
+		bulkBatchSize = batch;
+	}
+
+	public long getBulkMaxBytes()
+	{
+		return bulkMaxBytes;
+	}
+
+	/**
+	 * Cap on the payload size of a single _bulk request.  Batches end at bulkBatchSize docs or
+	 * this many bytes, whichever comes first.  Defaults to 10 MB, 0 disables the byte cap.
+	 * 
+	 * @param bytes
+	 */
+	public void setBulkMaxBytes(long bytes)
+	{
+		if(bytes < 0) bytes = 0;
+		bulkMaxBytes = bytes;
+	}
+
+	public int getBulkMaxRetries()
+	{
+		return bulkMaxRetries;
+	}
+
+	/**
+	 * Number of times bulk items rejected with 429 or 503 are resent.  Defaults to 3.
+	 * 
+	 * @param num
+	 */
+	public void setBulkMaxRetries(int num)
+	{
+		if(num < 0) num = 0;
+		bulkMaxRetries = num;
+	}
+
+	public long getBulkRetryBackoff()
+	{
+		return bulkRetryBackoff;
+	}
+
+	/**
+	 * The wait in ms before the first bulk retry.  It doubles with each retry.
+	 * 
+	 * @param millis
+	 */
+	public void setBulkRetryBackoff(long millis)
+	{
+		bulkRetryBackoff = millis;
+	}
+
+	public int getDeleteByIdBatchSize()
+	{
+		return deleteByIdBatchSize;
+	}
+
+	/**
+	 * Number of ids deleteDocs sends in each _bulk request.  Defaults to 500.
+	 * 
+	 * @param batch
+	 */
+	public void setDeleteByIdBatchSize(int batch)
+	{
+		if(batch < 1) batch = 1;
+		deleteByIdBatchSize = batch;
+	}
+
+	public long getGetBatchWindowMicros()
+	{
+		return getBatchWindowMicros;
+	}
+
+	/**
+	 * Merge getDoc calls for the same index made within this many microseconds into one _mget,
+	 * e.g. 1000 for 1 ms.  0, the default, sends each get on its own.
+	 * 
+	 * @param micros
+	 */
+	public synchronized void setGetBatchWindowMicros(long micros)
+	{
+		if(micros < 0) micros = 0;
+		getBatchWindowMicros = micros;
+		resetGetBatcher();
+	}
+
+	public int getGetBatchMaxIDs()
+	{
+		return getBatchMaxIDs;
+	}
+
+	/**
+	 * The most ids merged into one _mget, a full batch is sent without waiting for the window
+	 * to close.  Defaults to 100.
+	 * 
+	 * @param num
+	 */
+	public synchronized void setGetBatchMaxIDs(int num)
+	{
+		if(num < 1) num = 1;
+		getBatchMaxIDs = num;
+		resetGetBatcher();
+	}
+
+	/**
+	 * Returns the batcher used by getDoc, null when batching is off.
+	 * 
+	 * @return
+	 */
+	public GetBatcher getGetBatcher()
+	{
+		GetBatcher b = getBatcher;
+		if(b != null || getBatchWindowMicros <= 0) return b;
+
+		synchronized(this)
+		{
+			if(getBatchWindowMicros <= 0) return null;
+			if(getBatcher == null)
+			{
+				getBatcher = new GetBatcher(this, getBatchWindowMicros, getBatchMaxIDs);
+			}
+			return getBatcher;
+		}
+	}
+
+	private void resetGetBatcher()
+	{
+		if(getBatcher != null)
+		{
+			getBatcher.close();
+			getBatcher = null;
+		}
+	}
+
+	public BulkTuner getBulkTuner()
+	{
+		return bulkTuner;
+	}
+
+	/**
+	 * Let the tuner pick the batch size and concurrency of multiCreateDoc, multiSaveDoc and the
+	 * other bulk calls from observed latency and rejections.  Null, the default, uses the fixed
+	 * bulkBatchSize and bulkConcurrency.  bulkMaxBytes still caps every request.
+	 * 
+	 * @param tuner
+	 */
+	public void setBulkTuner(BulkTuner tuner)
+	{
+		bulkTuner = tuner;
+	}
+
+	public RetryPolicy getRetryPolicy()
+	{
+		return retryPolicy;
+	}
+
+	/**
+	 * Retry failed requests as the policy allows.  Null, the default, makes a single attempt.
+	 * 
+	 * @param policy
+	 */
+	public void setRetryPolicy(RetryPolicy policy)
+	{
+		retryPolicy = policy;
+	}
+
+	public int getCircuitBreakerThreshold()
+	{
+		return circuitBreakerThreshold;
+	}
+
+	/**
+	 * Open a node's circuit breaker after this many failed requests in a row, failing requests to
+	 * it fast until circuitBreakerOpenMillis have passed.  Defaults to 0, no circuit breaking.
+	 * 
+	 * @param num
+	 */
+	public void setCircuitBreakerThreshold(int num)
+	{
+		if(num < 0) num = 0;
+		circuitBreakerThreshold = num;
+		breakers.clear();
+	}
+
+	public long getCircuitBreakerOpenMillis()
+	{
+		return circuitBreakerOpenMillis;
+	}
+
+	/**
+	 * How long an open circuit fails fast before a trial request is sent.  Defaults to 10 seconds.
+	 * 
+	 * @param millis
+	 */
+	public void setCircuitBreakerOpenMillis(long millis)
+	{
+		circuitBreakerOpenMillis = millis;
+		breakers.clear();
+	}
+
+	/**
+	 * Returns the circuit breaker for the node url, or the baseURL, null if none has been used.
+	 * 
+	 * @param url
+	 * @return
+	 */
+	public CircuitBreaker getCircuitBreaker(String url)
+	{
+		return breakers.get(url);
+	}
+
+	public int getBulkConcurrency()
+	{
+		return bulkConcurrency;
+	}
+
+	/**
+	 * Number of _bulk requests multiCreateDoc and multiSaveDoc send at the same time.  Defaults to 1.
+	 * 
+	 * @param num
+	 */
+	public void setBulkConcurrency(int num)
+	{
+		if(num < 1) num = 1;
+		bulkConcurrency = num;
+	}
+
+	public void setUsername(String user)
+	{
+		username = user;
+	}
+
+	public String getUsername()
+	{
+		return username;
+	}
+
+	public void setAuthType(String type)
+	{
+		if(type != null)
+		{
+			type = type.toLowerCase();
+		}
+
+		authType = type;
+	}
+
+	public String getAuthType()
+	{
+		return authType;
+	}
+
+	public void setPassword(String secret)
+	{
+		password = secret;
+	}
+
+	public String getPassword()
+	{
+		// not available;
+		return null;
+	}
+
+	/**
+	 * Returns the list of index names.
+	 * 
+	 * @return
+	 */
+	public List<String> getIndexNames() throws ECException
+	{
+		MetadataCache cache = metadataCache;
+		if(cache == null)
+		{
+			return loadIndexNames();
+		}
+
+		List<String> names = cache.get("_cat/indices", this::loadIndexNames);
+		if(names == null) return null;
+		return new ArrayList<String>(names);
+	}
+
+	/**
+	 * Fetch the list of index names from the server.
+	 * 
+	 * @return
+	 * @throws ECException
+	 */
+	protected List<String> loadIndexNames() throws ECException
+	{
+		// only the index column is needed
+		String url = baseURL +"_cat/indices?format=json&h=index";
+		debug(url);
+
+		HttpRequest req = HttpRequest.get(url);
+
+		HttpResponse resp = sendRequest(req);
+
+		logResponse("Index name",resp);
+
+		JsonParser jp = new JsonParser();
+
+		JsonArray arr = jp.parseAsJsonArray(resp.bodyText());
+
+		List<String> names = null;
+
+		if(arr != null && arr.size()>0)
+		{
+			int size = arr.size();
+			names = new ArrayList<String>(size);
+			JsonObject obj = null;
+
+			for(int i=0; i<size; i++)
+			{
+				obj = arr.getJsonObject(i);
+				names.add(obj.getString("index"));
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Returns the field types of the index keyed by field name.
+	 * 
+	 * @param index
+	 * @return
+	 * @throws ECException
+	 */
+	public Map<String,String> getMappings(String index) throws ECException
+	{
+		MetadataCache cache = metadataCache;
+		if(cache == null)
+		{
+			return loadMappings(index);
+		}
+
+		Map<String,String> types = cache.get(index + "/_mapping", () -> loadMappings(index));
+		if(types == null) return null;
+		return new HashMap<String,String>(types);
+	}
+
+	/**
+	 * Fetch the field types of the index from the server.
+	 * 
+	 * @param index
+	 * @return
+	 * @throws ECException
+	 */
+	protected Map<String,String> loadMappings(String index) throws ECException
+	{
+		Map<String,String> types = new HashMap<String,String>();
+
+		// _mapping leaves out the settings and aliases that /{index}/ returns
+		String url = baseURL + index + "/_mapping";
+		debug(url);
+		HttpRequest req = HttpRequest.get(url);
+		HttpResponse resp = sendRequest(req);
+
+		logResponse("mappings",resp);
+		JsonParser jp = new JsonParser();
+
+		JsonObject obj = jp.parseAsJsonObject(resp.bodyText());
+		if(obj.containsKey(index))
+		{
+			obj = obj.getJsonObject(index);
+		}
+		else if(obj.size() > 0)
+		{
+			// an alias comes back under the name of the index it points to
+			obj = obj.getJsonObject(obj.fieldNames().iterator().next());
+		}
+		obj = obj.getJsonObject("mappings");
+
+		//Map<String,Object> m1 = obj.map();
+		Map<String,Object> m2 = null;
+		Map<String,String> mt = null;
+
+		//List<String> typeNames = new ArrayList<String>(m1.keySet());
+		//Collections.sort(typeNames);
+		//int size = typeNames.size();
+
+		List<String> ps = null;
+		String p = null;
+		int np = 0;
+
+		String type = null;
+		//JsonObject o1 = null;
+		JsonObject o2 = null;
+
+		type = index;
+		// for kibana >= 7  there is only one type per index
+		//for(int i=0; i<size; i++)
+		{
+			//type = typeNames.get(i);
+			//o1 = obj.getJsonObject(type);
+			mt = new HashMap<String,String>();
+			//o2 = o1.getJsonObject("properties");
+			o2 = obj.getJsonObject("properties");
+			m2 = o2.map();
+			ps = new ArrayList<String>(m2.keySet());
+			Collections.sort(ps);
+			np = ps.size();
+
+			for(int j=0; j<np; j++)
+			{
+				p = ps.get(j);
+				type = o2.getJsonObject(p).getString("type");
+				mt.put(p, type);
+			}
+		}
+
+		types = mt;
+
+		return types;
+	}
+
+
+	/**
+	 * Run a match query for the specified value of the field against the index.  Defaults to 10 maxHits.
+	 * 
+	 * @param index
+	 * @param field
+	 * @param value
+	 * @return
+	 */
+	public String runMatchQueryRaw(String index, String field, String value) throws ECException
+	{
+		return runMatchQueryRaw(index,field,value,10);
+	}
+
+	/**
+	 * Run a match query for the specified value of the field against the index.
+	 * 
+	 * @param index
+	 * @param field
+	 * @param value
+	 * @param maxHits
+	 * @return
+	 */
+	public String runMatchQueryRaw(String index, String field, String value, int maxHits) throws ECException
+	{
+		byte json[] = search(index, matchQueryBody(field,value,maxHits), maxHits);
+
+		return new String(json, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Build the body of a match query, null if there is nothing to send.
+	 * 
+	 * @param field
+	 * @param value
+	 * @param maxHits
+	 * @return
+	 */
+	protected String matchQueryBody(String field, String value, int maxHits)
+	{
+		String body = null;
+
+		if(field != null)
+		{
+			if(maxHits > 0)
+			{
+				body = "{\"size\":"+String.valueOf(maxHits)+",\"query\":"+matchQueryJson(field,value)+"}";
+			}
+			else
+			{
+				body = "{\"query\":"+matchQueryJson(field,value)+"}";
+			}
+		}
+		else if(maxHits > -1)
+		{
+			body = "{\"size\":"+String.valueOf(maxHits)+"}";
+		}
+
+		return body;
+	}
+
+	/**
+	 * The match clause for the field and value.
+	 * 
+	 * @param field
+	 * @param value
+	 * @return
+	 */
+	protected String matchQueryJson(String field, String value)
+	{
+		StringBuilder sb = new StringBuilder(32 + field.length() + (value == null ? 4 : value.length()));
+		sb.append("{\"match\":{\"").append(field).append("\":");
+		if(value != null)
+		{
+			sb.append('"');
+			escapeJSON(value, sb);
+			sb.append('"');
+		}
+		else
+		{
+			sb.append("null");
+		}
+		return sb.append("}}").toString();
+	}
+
+	/**
+	 * Iterate over every hit of a match query, pageSize hits at a time.  See SearchHitIterator.
+	 * 
+	 * @param index
+	 * @param field
+	 * @param value
+	 * @param pageSize
+	 * @return
+	 * @throws ECException
+	 */
+	public SearchHitIterator scanMatchQuery(String index, String field, String value, int pageSize) throws ECException
+	{
+		return scan(index, matchQueryJson(field,value), pageSize);
+	}
+
+	/**
+	 * Iterate over every hit of a query string query, pageSize hits at a time.  See SearchHitIterator.
+	 * 
+	 * @param index
+	 * @param query
+	 * @param pageSize
+	 * @return
+	 * @throws ECException
+	 */
+	public SearchHitIterator scanQueryStringQuery(String index, String query, int pageSize) throws ECException
+	{
+		return scan(index, queryStringQueryJson(query), pageSize);
+	}
+
+	/**
+	 * Iterate over every hit of the query clause, pageSize hits at a time.  The iterator pages with
+	 * search_after over a point in time, or a scroll on older clusters, and prefetches the next page
+	 * in the background.  Close it, or read it to the end, to release the server side context.
+	 * 
+	 * @param index
+	 * @param queryJson the query clause, e.g. {"match_all":{}}, null for every doc
+	 * @param pageSize
+	 * @return
+	 * @throws ECException
+	 */
+	public SearchHitIterator scan(String index, String queryJson, int pageSize) throws ECException
+	{
+		SearchHitIterator it = new SearchHitIterator(this, index, queryJson, pageSize);
+		try
+		{
+			it.open();
+		}
+		catch(ECException ex)
+		{
+			it.close();
+			throw ex;
+		}
+		return it;
+	}
+
+	/**
+	 * Scan every hit of the query clause in parallel slices, handing each hit to the consumer on
+	 * one of the slice worker threads.  Blocks until the scan is done.  See SlicedScan.
+	 * 
+	 * @param index
+	 * @param queryJson the query clause, null for every doc
+	 * @param pageSize hits per page in each slice
+	 * @param slices number of slices and worker threads
+	 * @param consumer must be thread safe
+	 * @return the number of hits
+	 * @throws ECException
+	 */
+	public long scanSliced(String index, String queryJson, int pageSize, int slices, Consumer<SearchHit> consumer) throws ECException
+	{
+		SlicedScan scan = new SlicedScan(this, index, queryJson, pageSize, slices);
+		return scan.forEach(consumer);
+	}
+
+	/**
+	 * Scan every hit of the query clause in parallel slices merged into one stream.  Close the
+	 * stream to stop early.  See SlicedScan.
+	 * 
+	 * @param index
+	 * @param queryJson the query clause, null for every doc
+	 * @param pageSize hits per page in each slice
+	 * @param slices number of slices and worker threads
+	 * @return
+	 * @throws ECException
+	 */
+	public Stream<SearchHit> streamSliced(String index, String queryJson, int pageSize, int slices) throws ECException
+	{
+		SlicedScan scan = new SlicedScan(this, index, queryJson, pageSize, slices);
+		return scan.stream();
+	}
+
+	/**
+	 * Run a query string query against the index.
+	 * 
+	 * @param index
+	 * @param query
+	 * @param maxHits
+	 * @return
+	 */
+	public String runQueryStringQueryRaw(String index, String query, int maxHits) throws ECException
+	{
+		byte json[] = search(index, queryStringQueryBody(query,maxHits), maxHits);
+
+		return new String(json, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Build the body of a query string query, null if there is nothing to send.
+	 * 
+	 * @param query
+	 * @param maxHits
+	 * @return
+	 */
+	protected String queryStringQueryBody(String query, int maxHits)
+	{
+		String body = null;
+
+		if(query != null)
+		{
+			if(maxHits > 0)
+			{
+				body = "{\"size\":"+String.valueOf(maxHits)+",\"query\":"+queryStringQueryJson(query)+"}";
+			}
+			else
+			{
+				body = "{\"query\":"+queryStringQueryJson(query)+"}";
+			}
+		}
+		else if(maxHits > -1)
+		{
+			body = "{\"size\":"+String.valueOf(maxHits)+"}";
+		}
+
+		return body;
+	}
+
+	/**
+	 * The query_string clause for the query.
+	 * 
+	 * @param query
+	 * @return
+	 */
+	protected String queryStringQueryJson(String query)
+	{
+		StringBuilder sb = new StringBuilder(40 + (query == null ? 4 : query.length()));
+		sb.append("{\"query_string\":{\"query\": \"");
+		if(query == null) sb.append("null");
+		else escapeJSON(query, sb);
+		return sb.append("\"}}").toString();
+	}
+
+	/**
+	 * Send the search body to _search, or to _count when maxHits is 0.
+	 * 
+	 * @param index
+	 * @param body may be null
+	 * @param maxHits
+	 * @return
+	 * @throws ECException
+	 */
+	protected HttpResponse sendSearch(String index, String body, int maxHits) throws ECException
+	{
+		return sendJson(HttpRequest.get(searchURL(index,maxHits)), body, "Query response");
+	}
+
+	/**
+	 * The _search url for the index, or _count when maxHits is 0.
+	 * 
+	 * @param index
+	 * @param maxHits
+	 * @return
+	 */
+	protected String searchURL(String index, int maxHits)
+	{
+		if(maxHits == 0)
+		{
+			return baseURL+index+"/_count";
+		}
+		return baseURL + index+"/_search";
+	}
+
+	/**
+	 * Run the search and return the response body, from the query cache when there is one.
+	 * 
+	 * @param index
+	 * @param body may be null
+	 * @param maxHits
+	 * @return
+	 * @throws ECException
+	 */
+	protected byte[] search(String index, String body, int maxHits) throws ECException
+	{
+		QueryCache cache = queryCache;
+		if(cache == null)
+		{
+			return sendSearch(index, body, maxHits).bodyBytes();
+		}
+
+		String key = cache.key(searchURL(index,maxHits), body);
+		byte json[] = cache.get(key);
+		if(json != null) return json;
+
+		long gen = cache.generation();
+		json = sendSearch(index, body, maxHits).bodyBytes();
+		cache.put(index, key, json, gen);
+
+		return json;
+	}
+
+	/**
+	 * Send the request with an optional json body and check the response.
+	 * 
+	 * @param req
+	 * @param body may be null
+	 * @param msg used when logging the response
+	 * @return
+	 * @throws ECException
+	 */
+	protected HttpResponse sendJson(HttpRequest req, String body, String msg) throws ECException
+	{
+		if(debugLogging) logger.info(req.url());
+
+		if(body != null)
+		{
+			debug(body);
+
+			req.bodyText(body, "application/json");
+		}
+
+		HttpResponse resp = sendRequest(req);
+
+		logResponse(msg,resp);
+
+		return resp;
+	}
+
+	/**
+	 * Utility method for logging response status.
+	 * 
+	 * @param string
+	 * @param resp
+	 */
+	protected void logResponse(String msg, HttpResponse resp)  throws ECException
+	{
+		if(resp != null)
+		{
+			if(debugLogging) logger.info(msg + ": " + resp.statusCode() + ", " + resp.statusPhrase());
+			int code = resp.statusCode();
+			code = (int)(code/100);
+			if(code != 2)
+			{
+				ECException ec = new ECException(resp.statusPhrase());
+				ec.setHttpStatus(resp.statusCode());
+				ec.setResponseBody(resp.bodyText());
+				throw ec;
+			}
+		}
+		else
+		{
+			logger.warning("Null response object");
+		}
+	}
+
+	/**
+	 * Run a match query for the specified value of the field against the index and parse the results.
+	 * 
+	 * @param index
+	 * @param field
+	 * @param value
+	 * @return
+	 */
+	public SearchResults runMatchQuery(String index, String field, String value) throws ECException
+	{
+		return runMatchQuery(index,field,value,10);
+	}
+
+	/**
+	 * Run a match query for the specified value of the field against the index and parse the results.
+	 * 
+	 * @param index
+	 * @param field
+	 * @param value
+	 * @param maxHits
+	 * @return
+	 */
+	public SearchResults runMatchQuery(String index, String field, String value, int maxHits) throws ECException
+	{
+		SearchResults res = searchResults(index, matchQueryBody(field,value,maxHits), maxHits);
+
+		return res;
+	}
+
+	/**
+	 * Run a match query and bind the source of each hit to an instance of the class, straight
+	 * from the response bytes.
+	 * 
+	 * @param index
+	 * @param field
+	 * @param value
+	 * @param maxHits
+	 * @param cls
+	 * @return the bound sources in hit order
+	 * @throws ECException
+	 */
+	public <T> List<T> runMatchQuery(String index, String field, String value, int maxHits, Class<T> cls) throws ECException
+	{
+		SearchResults res = runMatchQuery(index, field, value, maxHits);
+		try
+		{
+			return res.getSources(cls);
+		}
+		catch(RuntimeException ex)
+		{
+			logger.log(Level.WARNING,"Error binding hits",ex);
+			throw new ECException("Error binding hits to " + cls.getName(), ex);
+		}
+	}
+
+	public SearchResults runQueryStringQuery(String index, String query, int maxHits) throws ECException
+	{
+		SearchResults res = searchResults(index, queryStringQueryBody(query,maxHits), maxHits);
+
+		return res;
+	}
+
+	/**
+	 * Start a multi search, add searches to it and run it to send them in one request.
+	 * 
+	 * @return
+	 */
+	public MultiSearch createMultiSearch()
+	{
+		return new MultiSearch(this);
+	}
+
+	/**
+	 * Send every search in the multi search with one _msearch request.  Returns a SearchResults
+	 * per search in the order they were added.  A search that failed has its error set rather
+	 * than failing the others.
+	 * 
+	 * @param ms
+	 * @return
+	 * @throws ECException if the request as a whole fails
+	 */
+	public List<SearchResults> multiSearch(MultiSearch ms) throws ECException
+	{
+		List<SearchResults> results = null;
+		try
+		{
+			MultiSearch.Snapshot snap = ms.snapshot();
+			int size = snap.maxHits.length;
+			if(size == 0) return new ArrayList<SearchResults>();
+
+			int maxHits[] = snap.maxHits;
+			int est = 0;
+			for(int i=0; i<size; i++)
+			{
+				est += snap.bodies[i].length() + snap.indices[i].length() + 16;
+			}
+
+			StringBuilder sb = new StringBuilder(est);
+			for(int i=0; i<size; i++)
+			{
+				sb.append("{\"index\":\"");
+				escapeJSON(snap.indices[i], sb);
+				sb.append("\"}\n");
+				sb.append(snap.bodies[i]);
+				sb.append('\n');
+			}
+
+			String url = baseURL + "_msearch";
+			String body = sb.toString();
+			debug(url);
+			if(debugLogging) debug(body);
+
+			HttpRequest req = HttpRequest.post(url);
+			req.bodyText(body, "application/x-ndjson");
+
+			HttpResponse resp = sendRequest(req);
+
+			logResponse("msearch response",resp);
+
+			results = SearchResponseParser.parseMulti(resp.bodyBytes(), maxHits);
+			if(results.size() != size)
+			{
+				throw new ECException("Expected " + size + " msearch responses but got " + results.size());
+			}
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.WARNING,"Error running multi search",ex);
+			if(ex instanceof ECException) throw ((ECException)ex);
+			throw new ECException("Error running multi search", ex);
+		}
+
+		return results;
+	}
+
+	/**
+	 * Async multiSearch, the future completes on the async executor.
+	 * 
+	 * @param ms
+	 * @return
+	 */
+	public CompletableFuture<List<SearchResults>> multiSearchAsync(MultiSearch ms)
+	{
+		return async(() -> multiSearch(ms));
+	}
+
+	/**
+	 * Run the search and parse the response, sharing the request with an identical search
+	 * already in flight when collapseQueries is on.  Each caller sharing a request gets its own
+	 * copy of the results, since hits decode their sources lazily and aren't thread safe.
+	 * 
+	 * @param index
+	 * @param body may be null
+	 * @param maxHits
+	 * @return
+	 * @throws ECException
+	 */
+	protected SearchResults searchResults(String index, String body, int maxHits) throws ECException
+	{
+		if(!collapseQueries)
+		{
+			return parseElasticSearchResponse(search(index, body, maxHits), maxHits);
+		}
+
+		String key = searchURL(index,maxHits);
+		if(body != null) key += "\n" + body;
+
+		CompletableFuture<SearchResults> f = new CompletableFuture<SearchResults>();
+		CompletableFuture<SearchResults> leader = inFlightQueries.putIfAbsent(key, f);
+
+		if(leader == null)
+		{
+			try
+			{
+				SearchResults res = parseElasticSearchResponse(search(index, body, maxHits), maxHits);
+				f.complete(res);
+				return res == null ? null : res.copy();
+			}
+			catch(Exception ex)
+			{
+				f.completeExceptionally(ex);
+				throw ex;
+			}
+			finally
+			{
+				inFlightQueries.remove(key, f);
+				if(!f.isDone())
+				{
+					// an Error is left to the leader, the followers just mustn't wait forever
+					f.completeExceptionally(new ECException("Search failed in the thread running it"));
+				}
+			}
+		}
+
+		collapsedQueries.increment();
+		try
+		{
+			SearchResults res = leader.get();
+			return res == null ? null : res.copy();
+		}
+		catch(InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new ECException("Interrupted waiting for search", ex);
+		}
+		catch(ExecutionException ex)
+		{
+			Throwable t = ex.getCause();
+			if(t instanceof ECException) throw (ECException)t;
+			if(t instanceof RuntimeException) throw (RuntimeException)t;
+			throw new ECException("Error running search", t);
+		}
+	}
+
+	/**
+	 * Async runMatchQuery, the future completes on the async executor.
+	 * 
+	 * @param index
+	 * @param field
+	 * @param value
+	 * @param maxHits
+	 * @return
+	 */
+	public CompletableFuture<SearchResults> runMatchQueryAsync(String index, String field, String value, int maxHits)
+	{
+		return async(() -> runMatchQuery(index,field,value,maxHits));
+	}
+
+	/**
+	 * Async runMatchQueryRaw, the future completes on the async executor.
+	 * 
+	 * @param index
+	 * @param field
+	 * @param value
+	 * @param maxHits
+	 * @return
+	 */
+	public CompletableFuture<String> runMatchQueryRawAsync(String index, String field, String value, int maxHits)
+	{
+		return async(() -> runMatchQueryRaw(index,field,value,maxHits));
+	}
+
+	/**
+	 * Async runQueryStringQuery, the future completes on the async executor.
+	 * 
+	 * @param index
+	 * @param query
+	 * @param maxHits
+	 * @return
+	 */
+	public CompletableFuture<SearchResults> runQueryStringQueryAsync(String index, String query, int maxHits)
+	{
+		return async(() -> runQueryStringQuery(index,query,maxHits));
+	}
+
+	/**
+	 * Parse the provided json string into a search results object.
+	 * 
+	 * @param jsonStr
+	 * @return
+	 */
+	public SearchResults parseElasticSearchResponse(String jsonStr, int maxHits)
+	{
+		return parseElasticSearchResponse(jsonStr.getBytes(StandardCharsets.UTF_8), maxHits);
+	}
+
+	/**
+	 * Parse the UTF-8 response bytes into a search results object.  The bytes are walked in place
+	 * and each hit's _source is only parsed when it is asked for.
+	 * 
+	 * @param json
+	 * @param maxHits
+	 * @return
+	 */
+	public SearchResults parseElasticSearchResponse(byte json[], int maxHits)
+	{
+		SearchResults res = null;
+
+		try
+		{
+			res = SearchResponseParser.parse(json, maxHits);
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.WARNING, "Error parsing results", ex);
+		}
+		return res;
+	}
+
+	/**
+	 * Fetch the json document with the specified id.
+	 * 
+	 * @param index
+	 * @param id
+	 * @return
+	 */
+	public String getDoc(String index, String id) throws ECException
+	{
+		if(id == null || id.trim().length() == 0) return null;
+
+		String json = null;
+		try
+		{
+			String url = baseURL + index+"/_doc/"+id;
+			HttpRequest req = null;
+			HttpResponse resp = null;
+			GetBatcher batcher = null;
+			if(!index.contains("*") && (batcher = getGetBatcher()) != null)
+			{
+				json = batcher.get(index, id);
+			}
+			else if(!index.contains("*"))
+			{
+				debug(url);
+
+				req = HttpRequest.get(url);
+
+				resp = sendRequest(req);
+
+				logResponse("get response",resp);
+
+				json = resp.bodyText();
+			}
+			else
+			{
+				// we have to query for the doc by id
+				String body = "{\"query\":{\"ids\":{\"values\": [\""+id+"\"]}}}";
+				
+				debug(body);
+				url = baseURL + index+"/_search";
+				debug(url);
+
+				req = HttpRequest.get(url);
+
+				req.bodyText(body, "application/json");
+				
+				resp = sendRequest(req);
+
+				logResponse("get response",resp);
+
+				json = resp.bodyText();
+				
+				JsonParser jp = new JsonParser();
+				JsonObject obj = jp.parseAsJsonObject(json);
+				obj = obj.getJsonObject("hits");
+				obj = obj.getJsonArray("hits").getJsonObject(0);
+				json = obj.toString();
+			}
+			
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.WARNING,"Error getting doc",ex);
+			if(ex instanceof ECException) throw ((ECException)ex);
+		}
+
+		return json;
+	}
+
+	/**
+	 * Get the doc and bind its source to an instance of the class.  Unless the get is batched
+	 * or the index is a wildcard the source is bound straight from the response bytes.
+	 * 
+	 * @param index
+	 * @param id
+	 * @param cls
+	 * @return null if there is no id
+	 * @throws ECException
+	 */
+	public <T> T getDoc(String index, String id, Class<T> cls) throws ECException
+	{
+		if(id == null || id.trim().length() == 0) return null;
+
+		DocBinder<T> binder = null;
+		byte buf[] = null;
+		try
+		{
+			binder = DocBinder.forClass(cls);
+
+			if(index.contains("*") || getGetBatcher() != null)
+			{
+				String json = getDoc(index, id);
+				if(json == null) return null;
+				buf = json.getBytes(StandardCharsets.UTF_8);
+			}
+			else
+			{
+				String url = baseURL + index+"/_doc/"+id;
+				debug(url);
+
+				HttpRequest req = HttpRequest.get(url);
+
+				HttpResponse resp = sendRequest(req);
+
+				logResponse("get response",resp);
+
+				buf = resp.bodyBytes();
+			}
+
+			return binder.bindSource(buf);
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.WARNING,"Error getting doc",ex);
+			if(ex instanceof ECException) throw ((ECException)ex);
+			throw new ECException("Error getting doc as " + cls.getName(), ex);
+		}
+	}
+
+	/**
+	 * Fetch several docs in one round trip with _mget.  Returns one entry per id in the same
+	 * order, as getDoc would return it, or null when there is no doc with that id.  Wildcard
+	 * indices use an ids query instead since _mget needs a concrete index.
+	 * 
+	 * @param index
+	 * @param ids
+	 * @return
+	 * @throws ECException
+	 */
+	public List<String> getDocs(String index, List<String> ids) throws ECException
+	{
+		if(ids == null || ids.size() == 0) return new ArrayList<String>();
+
+		try
+		{
+			if(index.contains("*"))
+			{
+				return searchByIDs(index, ids);
+			}
+			return multiGet(index, ids);
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.WARNING,"Error getting docs",ex);
+			if(ex instanceof ECException) throw ((ECException)ex);
+			throw new ECException("Error getting docs", ex);
+		}
+	}
+
+	/**
+	 * Send one _mget for the ids and return each doc's json, null for docs that weren't found.
+	 * 
+	 * @param index
+	 * @param ids
+	 * @return
+	 * @throws ECException
+	 */
+	protected List<String> multiGet(String index, List<String> ids) throws ECException
+	{
+		StringBuilder sb = new StringBuilder(16 + ids.size()*24);
+		sb.append("{\"ids\":[");
+		for(int i=0; i<ids.size(); i++)
+		{
+			if(i > 0) sb.append(',');
+			sb.append('"');
+			escapeJSON(ids.get(i), sb);
+			sb.append('"');
+		}
+		sb.append("]}");
+
+		HttpResponse resp = sendJson(HttpRequest.get(baseURL + index+"/_mget"), sb.toString(), "mget response");
+		byte buf[] = resp.bodyBytes();
+
+		List<String> docs = new ArrayList<String>(ids.size());
+
+		JsonPullParser p = new JsonPullParser(buf);
+		JsonPullParser dp = null;
+		int start = 0;
+		boolean found = false;
+
+		p.beginObject();
+		while(p.nextField())
+		{
+			if(!"docs".equals(p.fieldName()))
+			{
+				p.skipValue();
+				continue;
+			}
+
+			// docs come back in the order they were asked for
+			p.beginArray();
+			while(p.nextElement())
+			{
+				start = p.skipValue();
+
+				found = false;
+				dp = new JsonPullParser(buf, start, p.position()-start);
+				dp.beginObject();
+				while(dp.nextField())
+				{
+					if("found".equals(dp.fieldName()))
+					{
+						found = dp.peek() == 't';
+					}
+					else if("error".equals(dp.fieldName()))
+					{
+						logger.warning("Error getting doc: " + new String(buf, start, p.position()-start, StandardCharsets.UTF_8));
+					}
+					dp.skipValue();
+				}
+
+				docs.add(found ? new String(buf, start, p.position()-start, StandardCharsets.UTF_8) : null);
+			}
+		}
+
+		return docs;
+	}
+
+	/**
+	 * Fetch docs from wildcard indices with an ids query, returning each hit's json in the
+	 * order of the ids, null for ids with no hit.
+	 */
+	private List<String> searchByIDs(String index, List<String> ids) throws ECException
+	{
+		StringBuilder sb = new StringBuilder(48 + ids.size()*24);
+		sb.append("{\"size\":").append(ids.size()).append(",\"query\":{\"ids\":{\"values\":[");
+		for(int i=0; i<ids.size(); i++)
+		{
+			if(i > 0) sb.append(',');
+			sb.append('"');
+			escapeJSON(ids.get(i), sb);
+			sb.append('"');
+		}
+		sb.append("]}}}");
+
+		HttpResponse resp = sendJson(HttpRequest.get(baseURL + index+"/_search"), sb.toString(), "get response");
+		byte buf[] = resp.bodyBytes();
+
+		Map<String,String> byID = new HashMap<String,String>();
+
+		JsonPullParser p = new JsonPullParser(buf);
+		JsonPullParser hp = null;
+		int start = 0;
+
+		p.beginObject();
+		while(p.nextField())
+		{
+			if(!"hits".equals(p.fieldName()))
+			{
+				p.skipValue();
+				continue;
+			}
+
+			p.beginObject();
+			while(p.nextField())
+			{
+				if(!"hits".equals(p.fieldName()))
+				{
+					p.skipValue();
+					continue;
+				}
+
+				p.beginArray();
+				while(p.nextElement())
+				{
+					start = p.skipValue();
+					hp = new JsonPullParser(buf, start, p.position()-start);
+					hp.beginObject();
+					while(hp.nextField())
+					{
+						if("_id".equals(hp.fieldName()))
+						{
+							// the same id can be in several indices, keep the first
+							byID.putIfAbsent(hp.readString(), new String(buf, start, p.position()-start, StandardCharsets.UTF_8));
+							break;
+						}
+						hp.skipValue();
+					}
+				}
+			}
+		}
+
+		List<String> docs = new ArrayList<String>(ids.size());
+		for(String id : ids)
+		{
+			docs.add(byID.get(id));
+		}
+		return docs;
+	}
+
+	/**
+	 * Async getDoc, the future completes on the async executor.
+	 * 
+	 * @param index
+	 * @param id
+	 * @return
+	 */
+	public CompletableFuture<String> getDocAsync(String index, String id)
+	{
+		return async(() -> getDoc(index,id));
+	}
+
+	/**
+	 * If ID is not null it is used, otherwise an ID is generated and returned.  It will overwrite existing doc with same id.
+	 * 
+	 * @param index
+	 * @param jsonStr
+	 * @param id
+	 * @return
+	 */
+	public String saveDoc(String index, String jsonStr, String id) throws ECException
+	{
+		return saveDoc(index,jsonStr,id,-1,-1);
+	}
+
+
+	public String saveDoc(String index, String jsonStr, String id, int seq_no, int primary_term) throws ECException
+	{
+		if(jsonStr == null || jsonStr.trim().length() == 0) return null;
+
+		String outID = null;
+
+		try
+		{
+			String url = baseURL + index+"/_doc/";
+
+			boolean doPut = false;
+			if(id != null && id.trim().length() > 0)
+			{
+				doPut = true;
+				id = id.trim();
+				outID = id;
+				url +=id;
+
+				if(seq_no > -1 && primary_term > -1)
+				{
+					url+="?if_seq_no="+seq_no+"&if_primary_term="+primary_term;
+				}
+			}
+			debug(url);
+
+			HttpRequest req = null;
+
+			if(doPut)
+			{
+				req = HttpRequest.put(url);
+			}
+			else
+			{
+				req = HttpRequest.post(url);
+			}
+
+			req.bodyText(jsonStr, "application/json");
+
+			HttpResponse resp = null;
+			try
+			{
+				resp = sendRequest(req);
+			}
+			finally
+			{
+				invalidateCache(index);
+			}
+
+			logResponse("save response",resp);
+
+			String body = resp.bodyText();
+			JsonParser jp = new JsonParser();
+			JsonObject obj = jp.parseAsJsonObject(body);
+			outID = obj.getString("_id");
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.WARNING,"Error saving doc",ex);
+			if(ex instanceof ECException) throw ((ECException)ex);
+		}
+
+		return outID;
+	}
+
+	/**
+	 * Async saveDoc, the future completes on the async executor with the doc id.
+	 * 
+	 * @param index
+	 * @param jsonStr
+	 * @param id
+	 * @return
+	 */
+	public CompletableFuture<String> saveDocAsync(String index, String jsonStr, String id)
+	{
+		return async(() -> saveDoc(index,jsonStr,id));
+	}
+
+	/**
+	 * Use the _bulk api to create new docs from json.  Throws a BulkException listing the failed
+	 * items if any doc could not be indexed.
+	 * 
+	 * @param index
+	 * @param jsonStrs
+	 * @return
+	 */
+	public List<String> multiCreateDoc(String index, List<String> jsonStrs) throws ECException
+	{
+		List<String> ids = null;
+		try
+		{
+			List<BulkItemResult> results = multiIndexDoc(index, jsonStrs, null);
+			checkBulkResults(results);
+
+			int size = results.size();
+			ids = new ArrayList<String>(size);
+			for(int i=0; i<size; i++)
+			{
+				ids.add(results.get(i).getID());
+			}
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.WARNING,"Error doing bulk create",ex);
+			if(ex instanceof ECException) throw ((ECException)ex);
+		}
+
+		return ids;
+	}
+
+	/**
+	 * Use the _bulk api to save docs with the given ids.  Throws a BulkException listing the failed
+	 * items if any doc could not be indexed.
+	 * 
+	 * @param index
+	 * @param jsonStrs
+	 * @param ids
+	 */
+	public void multiSaveDoc(String index, List<String> jsonStrs, List<String> ids) throws ECException
+	{
+		try
+		{
+			checkBulkResults(multiIndexDoc(index, jsonStrs, ids));
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.WARNING,"Error doing bulk save",ex);
+			if(ex instanceof ECException) throw ((ECException)ex);
+		}
+	}
+
+	/**
+	 * Index the docs with the _bulk api in batches of at most bulkBatchSize docs and bulkMaxBytes
+	 * bytes, sending up to bulkConcurrency batches at once.  With a bulk tuner the batch size and
+	 * concurrency come from the tuner instead.  Items rejected with 429 or 503 are
+	 * resent up to bulkMaxRetries times.  Returns a result per doc in input order, failed items
+	 * are included rather than thrown.
+	 * 
+	 * @param index
+	 * @param jsonStrs
+	 * @param ids may be null for generated ids
+	 * @return
+	 * @throws ECException
+	 */
+	public List<BulkItemResult> multiIndexDoc(String index, List<String> jsonStrs, List<String> ids) throws ECException
+	{
+		int size = jsonStrs.size();
+
+		if((bulkConcurrency > 1 || bulkTuner != null) && batchEnd(index, jsonStrs, ids, 0) < size)
+		{
+			BulkProcessor bp = new BulkProcessor(this, index);
+			try
+			{
+				for(int i=0; i<size; i++)
+				{
+					bp.add(jsonStrs.get(i), ids == null ? null : ids.get(i));
+				}
+			}
+			finally
+			{
+				bp.close();
+			}
+			return bp.getResults();
+		}
+
+		List<BulkItemResult> results = new ArrayList<BulkItemResult>(size);
+
+		int ind = 0;
+		int tgt = 0;
+
+		while(ind < size)
+		{
+			tgt = batchEnd(index, jsonStrs, ids, ind);
+			results.addAll(sendBulk(index, jsonStrs, ids, ind, tgt));
+			ind = tgt;
+		}
+
+		return results;
+	}
+
+	/**
+	 * Async multiCreateDoc, the future completes with the new ids or a BulkException.
+	 * 
+	 * @param index
+	 * @param jsonStrs
+	 * @return
+	 */
+	public CompletableFuture<List<String>> multiCreateDocAsync(String index, List<String> jsonStrs)
+	{
+		return async(() -> multiCreateDoc(index,jsonStrs));
+	}
+
+	/**
+	 * Async multiSaveDoc, the future completes when every doc is saved or with a BulkException.
+	 * 
+	 * @param index
+	 * @param jsonStrs
+	 * @param ids
+	 * @return
+	 */
+	public CompletableFuture<Void> multiSaveDocAsync(String index, List<String> jsonStrs, List<String> ids)
+	{
+		return async(() -> {
+			multiSaveDoc(index,jsonStrs,ids);
+			return null;
+		});
+	}
+
+	/**
+	 * Async multiIndexDoc, the future completes with a result per doc.
+	 * 
+	 * @param index
+	 * @param jsonStrs
+	 * @param ids may be null for generated ids
+	 * @return
+	 */
+	public CompletableFuture<List<BulkItemResult>> multiIndexDocAsync(String index, List<String> jsonStrs, List<String> ids)
+	{
+		return async(() -> multiIndexDoc(index,jsonStrs,ids));
+	}
+
+	/**
+	 * Index docs pulled from the stream with generated ids, see streamIndexDoc(String,Iterator,Iterator).
+	 * 
+	 * @param index
+	 * @param jsonStrs
+	 * @return
+	 * @throws ECException
+	 */
+	public List<BulkItemResult> streamIndexDoc(String index, Stream<String> jsonStrs) throws ECException
+	{
+		return streamIndexDoc(index, jsonStrs.iterator(), null);
+	}
+
+	/**
+	 * Index docs with the _bulk api, writing action lines and sources straight to the connection
+	 * in chunks as they are pulled from the iterator.  Each request ends at bulkBatchSize docs or
+	 * bulkMaxBytes bytes, so memory use depends on the chunk size rather than the batch size.
+	 * Docs are not kept after they are written, so rejected items are reported but not resent.
+	 * 
+	 * @param index
+	 * @param jsonStrs
+	 * @param ids may be null for generated ids, otherwise one id (or null) per doc
+	 * @return a result per doc in input order
+	 * @throws ECException
+	 */
+	public List<BulkItemResult> streamIndexDoc(String index, Iterator<String> jsonStrs, Iterator<String> ids) throws ECException
+	{
+		List<BulkItemResult> results = new ArrayList<BulkItemResult>();
+
+		String url = baseURL + index+"/_bulk";
+
+		// a doc that didn't fit in the previous request
+		final String carry[] = new String[2];
+
+		try
+		{
+			while(carry[0] != null || jsonStrs.hasNext())
+			{
+				debug(url);
+
+				// jodd forces Content-Length on a POST so use PUT, which _bulk also accepts
+				HttpRequest req = HttpRequest.put(url);
+				req.contentType("application/x-ndjson");
+
+				HttpResponse resp = null;
+				try
+				{
+					resp = sendRequest(req, out -> writeBulkBody(out, index, jsonStrs, ids, carry));
+				}
+				finally
+				{
+					invalidateCache(index);
+				}
+
+				logResponse("bulk response",resp);
+
+				results.addAll(parseBulkResponse(resp.bodyText(), results.size()));
+			}
+		}
+		catch(HttpException ex)
+		{
+			throw new ECException("Error streaming bulk request", ex);
+		}
+
+		return results;
+	}
+
+	/**
+	 * Index the docs in an NDJSON file with the _bulk api without reading the file onto the heap.
+	 * The file is memory mapped and split on line boundaries into requests of at most
+	 * bulkBatchSize items and bulkMaxBytes bytes, each streamed from the mapping to the
+	 * connection.  Items rejected with 429 or 503 are read from the file again and resent up to
+	 * bulkMaxRetries times.  Only failures are kept, so memory use doesn't grow with the file.
+	 * 
+	 * @param index the index for a source only file, or the default index of a raw bulk file
+	 * which may be null if every action names its index
+	 * @param file
+	 * @param sourceOnly true if each line is a doc, false if the file is already in _bulk format
+	 * @return the number of items that succeeded
+	 * @throws ECException a BulkException holding only the failed items, positioned by their
+	 * order in the file, if any item failed
+	 */
+	public long ingestFile(String index, File file, boolean sourceOnly) throws ECException
+	{
+		String url = baseURL + (index == null ? "" : index+"/") + "_bulk";
+
+		long total = 0;
+		List<BulkItemResult> failures = new ArrayList<BulkItemResult>();
+
+		try(BulkFile bf = new BulkFile(file, index, sourceOnly))
+		{
+			BulkFile.Chunk chunk = null;
+			List<BulkItemResult> results = null;
+			BulkItemResult item = null;
+			while((chunk = bf.next(currentBulkBatchSize(), bulkMaxBytes)) != null)
+			{
+				results = sendBulkChunk(url, index, bf, chunk);
+
+				for(int i=0; i<results.size(); i++)
+				{
+					item = results.get(i);
+					item.setPosition(chunk.getFirst()+i);
+					if(item.isFailed()) failures.add(item);
+				}
+				total += results.size();
+			}
+		}
+		catch(IOException ex)
+		{
+			logger.log(Level.WARNING,"Error reading " + file,ex);
+			throw new ECException("Error reading " + file, ex);
+		}
+		catch(HttpException ex)
+		{
+			throw new ECException("Error streaming bulk request", ex);
+		}
+
+		if(failures.size() > 0)
+		{
+			throw new BulkException(failures.size() + " of " + total + " bulk items failed", failures, total);
+		}
+
+		return total;
 	}
 
 	/**
-	 * Run a match query for the specified value of the field against the index.
-	 * 
-	 * @param index
-	 * @param field
-	 * @param value
-	 * @param maxHits
-	 * @return
+	 * Send one chunk of a file, then resend only the items rejected with 429 or 503.
 	 */
-	public String runMatchQueryRaw(String index, String field, String value, int maxHits) throws ECException
+	private List<BulkItemResult> sendBulkChunk(String url, String index, BulkFile bf, BulkFile.Chunk chunk) throws ECException
 	{
-		String url = baseURL + index+"/_search";
-
-		if(maxHits == 0)
-		{
-			url = baseURL+index+"/_count";
-		}
+		List<BulkItemResult> results = sendBulkChunk(url, index, bf, chunk, null);
 
-		logger.info(url);
-		HttpRequest req = HttpRequest.get(url);
+		long backoff = bulkRetryBackoff;
+		int size = results.size();
+		int retry[] = null;
+		int cnt = 0;
+		List<BulkItemResult> retried = null;
 
-		if(field != null)
+		for(int attempt=0; attempt<bulkMaxRetries; attempt++)
 		{
-			if(value != null)
+			cnt = 0;
+			for(int i=0; i<size; i++)
 			{
-				value = escapeJSON(value);
-
-				value = "\""+value+"\"";
+				if(results.get(i).isRetryable()) cnt++;
 			}
 
-			String body = null;
+			if(cnt == 0) break;
 
-			if(maxHits > 0)
+			retry = new int[cnt];
+			cnt = 0;
+			for(int i=0; i<size; i++)
 			{
-				body = "{\"size\":"+String.valueOf(maxHits)+",\"query\":{\"match\":{\""+field+"\":"+value+"}}}";
+				if(results.get(i).isRetryable()) retry[cnt++] = i;
 			}
-			else
+
+			logger.info("Retrying " + retry.length + " rejected bulk items in " + backoff + " ms");
+			try
+			{
+				Thread.sleep(backoff);
+			}
+			catch(InterruptedException ex)
 			{
-				body = "{\"query\":{\"match\":{\""+field+"\":"+value+"}}}";
+				Thread.currentThread().interrupt();
+				throw new ECException("Interrupted retrying bulk items", ex);
 			}
-			logger.info(body);
+			backoff *= 2;
 
-			req.bodyText(body, "application/json");
+			retried = sendBulkChunk(url, index, bf, chunk, retry);
+			for(int i=0; i<retry.length; i++)
+			{
+				if(i < retried.size())
+				{
+					results.set(retry[i], retried.get(i));
+				}
+				else
+				{
+					results.set(retry[i], missingBulkItem(results.get(retry[i])));
+				}
+			}
 		}
-		else if(maxHits > -1)
+
+		return results;
+	}
+
+	/**
+	 * Stream the chunk's items, or only those listed, to _bulk.
+	 */
+	private List<BulkItemResult> sendBulkChunk(String url, String index, BulkFile bf, BulkFile.Chunk chunk, int which[]) throws ECException
+	{
+		debug(url);
+
+		// jodd forces Content-Length on a POST so use PUT, which _bulk also accepts
+		HttpRequest req = HttpRequest.put(url);
+		req.contentType("application/x-ndjson");
+
+		int docs = which == null ? chunk.size() : which.length;
+		long start = System.nanoTime();
+
+		HttpResponse resp = null;
+		try
+		{
+			resp = sendRequest(req, out -> bf.write(chunk, which, out));
+		}
+		finally
 		{
-			String body = "{\"size\":"+String.valueOf(maxHits)+"}";
-			logger.info(body);
+			// a raw bulk file may name other indices, null drops every cached search
+			invalidateCache(bf.isSourceOnly() ? index : null);
+		}
 
-			req.bodyText(body, "application/json");
+		int status = resp == null ? 0 : resp.statusCode();
+		if(status == 429 || status == 503)
+		{
+			tuneBulk(start, docs, null);
 		}
 
-		HttpResponse resp = sendRequest(req);
+		logResponse("bulk response",resp);
 
-		logResponse("Query response",resp);
+		List<BulkItemResult> results = parseBulkResponse(resp.bodyText(), 0);
+		if(results.size() != docs)
+		{
+			throw new ECException("Expected " + docs + " bulk items but got " + results.size());
+		}
 
-		String body = resp.bodyText();
+		tuneBulk(start, docs, results);
 
-		return body;
+		return results;
 	}
 
 	/**
-	 * Run a match query for the specified value of the field against the index.
+	 * Feed the outcome of a _bulk request back to the bulk tuner, if there is one.
 	 * 
-	 * @param index
-	 * @param field
-	 * @param value
-	 * @param maxHits
-	 * @return
+	 * @param start System.nanoTime() when the request was sent
+	 * @param docs number of items sent
+	 * @param results null if the whole request was rejected
 	 */
-	public String runQueryStringQueryRaw(String index, String query, int maxHits) throws ECException
+	private void tuneBulk(long start, int docs, List<BulkItemResult> results)
 	{
-		String url = baseURL + index+"/_search";
-		if(maxHits == 0)
+		BulkTuner tuner = bulkTuner;
+		if(tuner == null) return;
+
+		int rejected = docs;
+		if(results != null)
 		{
-			url = baseURL + index + "/_count";
+			rejected = 0;
+			for(int i=0; i<results.size(); i++)
+			{
+				if(results.get(i).isRetryable()) rejected++;
+			}
 		}
-		logger.info(url);
-		HttpRequest req = HttpRequest.get(url);
+		tuner.record(start, System.nanoTime()-start, docs, rejected);
+	}
 
-		if(query != null)
+	/**
+	 * Write one bulk request body, stopping before the doc that would go over bulkBatchSize or bulkMaxBytes.
+	 */
+	private void writeBulkBody(OutputStream out, String index, Iterator<String> jsonStrs, Iterator<String> ids, String carry[]) throws IOException
+	{
+		Writer w = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+
+		String jsonCMD = "{ \"index\" : { \"_index\" : \""+index+"\"} }\n";
+		String idCMD = "{ \"index\" : { \"_index\" : \""+index+"\",\"_id\":\"";
+		String cmd2 = "\"}}\n";
+
+		int cnt = 0;
+		long bytes = 0;
+		long docBytes = 0;
+		String json = null;
+		String id = null;
+
+		int batch = currentBulkBatchSize();
+		while(cnt < batch)
 		{
-			query = escapeJSON(query);
-			String body = null;
-			if(maxHits > 0)
+			if(carry[0] != null)
+			{
+				json = carry[0];
+				id = carry[1];
+				carry[0] = null;
+				carry[1] = null;
+			}
+			else if(jsonStrs.hasNext())
 			{
-				body = "{\"size\":"+String.valueOf(maxHits)+",\"query\":{\"query_string\":{\"query\": \""+query+"\"}}}";
+				json = jsonStrs.next();
+				id = ids == null ? null : ids.next();
 			}
 			else
 			{
-				body = "{\"query\":{\"query_string\":{\"query\": \""+query+"\"}}}";    			
+				break;
 			}
-			logger.info(body);
 
-			req.bodyText(body, "application/json");
-		}
-		else if(maxHits > -1)
-		{
-			String body = "{\"size\":"+String.valueOf(maxHits)+"}";
-			logger.info(body);
+			if(bulkMaxBytes > 0)
+			{
+				docBytes = bulkEntryBytes(index, json, id);
+				if(cnt > 0 && bytes + docBytes > bulkMaxBytes)
+				{
+					carry[0] = json;
+					carry[1] = id;
+					break;
+				}
+				bytes += docBytes;
+			}
 
-			req.bodyText(body, "application/json");
+			if(id == null)
+			{
+				w.write(jsonCMD);
+			}
+			else
+			{
+				w.write(idCMD);
+				w.write(id);
+				w.write(cmd2);
+			}
+			w.write(json);
+			w.write('\n');
+			cnt++;
 		}
 
-		HttpResponse resp = sendRequest(req);
-
-		logResponse("Query response",resp);
-
-		String body = resp.bodyText();
-
-		return body;
+		w.flush();
 	}
 
 	/**
-	 * Utility method for logging response status.
+	 * The number of docs in a _bulk request, from the bulk tuner if there is one.
 	 * 
-	 * @param string
-	 * @param resp
+	 * @return
 	 */
-	protected void logResponse(String msg, HttpResponse resp)  throws ECException
+	protected int currentBulkBatchSize()
 	{
-		if(resp != null)
-		{
-			logger.info(msg + ": " + resp.statusCode() + ", " + resp.statusPhrase());
-			int code = resp.statusCode();
-			code = (int)(code/100);
-			if(code != 2)
-			{
-				ECException ec = new ECException(resp.statusPhrase());
-				ec.setHttpStatus(resp.statusCode());
-				ec.setResponseBody(resp.bodyText());
-				throw ec;
-			}
-		}
-		else
-		{
-			logger.warning("Null response object");
-		}
+		BulkTuner tuner = bulkTuner;
+		if(tuner != null) return tuner.getBatchSize();
+		return bulkBatchSize;
 	}
 
 	/**
-	 * Run a match query for the specified value of the field against the index and parse the results.
+	 * Find the end (exclusive) of the batch starting at from so that it holds at most
+	 * bulkBatchSize docs and bulkMaxBytes bytes.  A batch always holds at least one doc.
 	 * 
 	 * @param index
-	 * @param field
-	 * @param value
+	 * @param jsonStrs
+	 * @param ids
+	 * @param from
 	 * @return
 	 */
-	public SearchResults runMatchQuery(String index, String field, String value) throws ECException
+	protected int batchEnd(String index, List<String> jsonStrs, List<String> ids, int from)
 	{
-		return runMatchQuery(index,field,value,10);
+		int end = Math.min(jsonStrs.size(), from+currentBulkBatchSize());
+		if(bulkMaxBytes <= 0) return end;
+
+		long bytes = 0;
+		for(int i=from; i<end; i++)
+		{
+			bytes += bulkEntryBytes(index, jsonStrs.get(i), ids == null ? null : ids.get(i));
+			if(bytes > bulkMaxBytes && i > from)
+			{
+				return i;
+			}
+		}
+		return end;
 	}
 
 	/**
-	 * Run a match query for the specified value of the field against the index and parse the results.
+	 * The UTF-8 size of the action line and source for one doc in a _bulk body.
 	 * 
 	 * @param index
-	 * @param field
-	 * @param value
-	 * @param maxHits
+	 * @param json
+	 * @param id
 	 * @return
 	 */
-	public SearchResults runMatchQuery(String index, String field, String value, int maxHits) throws ECException
-	{
-		String body = runMatchQueryRaw(index,field,value,maxHits);
-		SearchResults res = parseElasticSearchResponse(body,maxHits);
-
-		return res;
-	}
-
-	public SearchResults runQueryStringQuery(String index, String query, int maxHits) throws ECException
+	protected static long bulkEntryBytes(String index, String json, String id)
 	{
-		String body = runQueryStringQueryRaw(index,query,maxHits);
-		SearchResults res = parseElasticSearchResponse(body,maxHits);
-
-		return res;
+		// the action line is about 40 bytes plus the index and id
+		long bytes = 42 + index.length() + utf8Length(json);
+		if(id != null) bytes += 10 + id.length();
+		return bytes;
 	}
 
 	/**
-	 * Parse the provided json string into a search results object.
+	 * Number of bytes needed to encode the string as UTF-8, without encoding it.
 	 * 
-	 * @param jsonStr
+	 * @param str
 	 * @return
 	 */
-	public SearchResults parseElasticSearchResponse(String jsonStr, int maxHits)
+	protected static int utf8Length(String str)
 	{
-		SearchResults res = null;
-
-		try
+		int len = str.length();
+		int bytes = len;
+		char c;
+		for(int i=0; i<len; i++)
 		{
-			JsonParser jp = new JsonParser();
-			JsonObject obj = jp.parseAsJsonObject(jsonStr);
-			JsonObject orig = obj;
-			obj = obj.getJsonObject("hits");
-
-			SearchHit[] hits = null;
-
-			res = new SearchResults();
-			if(obj != null)
+			c = str.charAt(i);
+			if(c >= 0x80)
 			{
-				// total used to be a simple integer
-				try
+				if(c < 0x800)
 				{
-					// but may be more complicated now
-					res.setTotal(obj.getJsonObject("total").getInteger("value"));
+					bytes++;
 				}
-				catch(Exception ex)
+				else if(Character.isHighSurrogate(c))
 				{
-					// fall back to integer
-					res.setTotal(obj.getInteger("total"));
+					// the pair is 4 bytes total
+					bytes += 2;
+					i++;
 				}
-
-				if(res.getTotal()>0 && maxHits > 0)
+				else
 				{
-					res.setMaxScore(obj.getDouble("max_score"));
-
-					JsonArray arr = obj.getJsonArray("hits");
-					int size = arr.size();
-					hits = new SearchHit[size];
-
-					res.setHits(hits);
-
-					SearchHit hit = null;
-
-					for(int i=0; i<size; i++)
-					{
-						obj = arr.getJsonObject(i);
-						hit = new SearchHit();
-						hits[i]=hit;
-						hit.setID(obj.getString("_id"));
-						hit.setScore(obj.getDouble("_score"));
-						obj = obj.getJsonObject("_source");
-						hit.setSourceObject(obj);
-						//hit.setSource(obj.toString());
-						//System.out.println(hit.getID() + "\t" + hit.getScore()+"\t"+hit.getSource());
-					}
-
-				} // end total > 0
-
-			} // end obj != null
-			else
-			{
-				Long cnt = orig.getLong("count");
-				res.setTotal(cnt);
+					bytes += 2;
+				}
 			}
 		}
-		catch(Exception ex)
-		{
-			logger.log(Level.WARNING, "Error parsing results", ex);
-		}
-		return res;
+		return bytes;
 	}
 
 	/**
-	 * Fetch the json document with the specified id.
+	 * Create a bulk processor for the index using the client's batch size and concurrency.
 	 * 
 	 * @param index
-	 * @param id
 	 * @return
 	 */
-	public String getDoc(String index, String id) throws ECException
+	public BulkProcessor createBulkProcessor(String index)
 	{
-		if(id == null || id.trim().length() == 0) return null;
-
-		String json = null;
-		try
-		{
-			String url = baseURL + index+"/_doc/"+id;
-			HttpRequest req = null;
-			HttpResponse resp = null;
-			if(!index.contains("*"))
-			{
-				logger.info(url);
-
-				req = HttpRequest.get(url);
-
-				resp = sendRequest(req);
-
-				logResponse("get response",resp);
-
-				json = resp.bodyText();
-			}
-			else
-			{
-				// we have to query for the doc by id
-				String body = "{\"query\":{\"ids\":{\"values\": [\""+id+"\"]}}}";
-				
-				logger.info(body);
-				url = baseURL + index+"/_search";
-				logger.info(url);
-
-				req = HttpRequest.get(url);
-
-				req.bodyText(body, "application/json");
-				
-				resp = sendRequest(req);
-
-				logResponse("get response",resp);
-
-				json = resp.bodyText();
-				
-				JsonParser jp = new JsonParser();
-				JsonObject obj = jp.parseAsJsonObject(json);
-				obj = obj.getJsonObject("hits");
-				obj = obj.getJsonArray("hits").getJsonObject(0);
-				json = obj.toString();
-			}
-			
-		}
-		catch(Exception ex)
-		{
-			logger.log(Level.WARNING,"Error getting doc",ex);
-			if(ex instanceof ECException) throw ((ECException)ex);
-		}
-
-		return json;
+		return new BulkProcessor(this, index);
 	}
 
 	/**
-	 * If ID is not null it is used, otherwise an ID is generated and returned.  It will overwrite existing doc with same id.
+	 * Index jsonStrs from (inclusive) to (exclusive) with one _bulk request, then resend only the
+	 * items rejected with 429 or 503, backing off exponentially between attempts.  When jsonStrs
+	 * is null the ids are deleted instead.
 	 * 
 	 * @param index
-	 * @param jsonStr
-	 * @param id
+	 * @param jsonStrs null to delete the ids
+	 * @param ids may be null, or contain nulls, for generated ids
+	 * @param from
+	 * @param to
 	 * @return
+	 * @throws ECException
 	 */
-	public String saveDoc(String index, String jsonStr, String id) throws ECException
-	{
-		return saveDoc(index,jsonStr,id,-1,-1);
-	}
-
-
-	public String saveDoc(String index, String jsonStr, String id, int seq_no, int primary_term) throws ECException
+	protected List<BulkItemResult> sendBulk(String index, List<String> jsonStrs, List<String> ids, int from, int to) throws ECException
 	{
-		if(jsonStr == null || jsonStr.trim().length() == 0) return null;
+		List<String> docs = null;
+		if(jsonStrs != null) docs = jsonStrs.subList(from, to);
+		List<String> docIDs = null;
+		if(ids != null) docIDs = ids.subList(from, to);
 
-		String outID = null;
-
-		try
+		List<BulkItemResult> results = sendBulkRequest(index, docs, docIDs);
+		if(results.size() != to - from)
 		{
-			String url = baseURL + index+"/_doc/";
-
-			boolean doPut = false;
-			if(id != null && id.trim().length() > 0)
-			{
-				doPut = true;
-				id = id.trim();
-				outID = id;
-				url +=id;
+			// the results are matched to docs by position, so a short list can't be trusted
+			throw new ECException("Expected " + (to - from) + " bulk items but got " + results.size());
+		}
 
-				if(seq_no > -1 && primary_term > -1)
-				{
-					url+="?if_seq_no="+seq_no+"&if_primary_term="+primary_term;
-				}
+		long backoff = bulkRetryBackoff;
+		List<Integer> retry = null;
+		List<String> retryDocs = null;
+		List<String> retryIDs = null;
+		List<BulkItemResult> retried = null;
+		int size = results.size();
+		int pos = 0;
+
+		for(int attempt=0; attempt<bulkMaxRetries; attempt++)
+		{
+			retry = new ArrayList<Integer>();
+			for(int i=0; i<size; i++)
+			{
+				if(results.get(i).isRetryable()) retry.add(i);
 			}
-			logger.info(url);
 
-			HttpRequest req = null;
+			if(retry.size() == 0) break;
 
-			if(doPut)
+			logger.info("Retrying " + retry.size() + " rejected bulk items in " + backoff + " ms");
+			try
 			{
-				req = HttpRequest.put(url);
+				Thread.sleep(backoff);
 			}
-			else
+			catch(InterruptedException ex)
 			{
-				req = HttpRequest.post(url);
+				Thread.currentThread().interrupt();
+				throw new ECException("Interrupted retrying bulk items", ex);
 			}
+			backoff *= 2;
 
-			req.bodyText(jsonStr, "application/json");
-
-			HttpResponse resp = sendRequest(req);
-
-			logResponse("save response",resp);
+			retryDocs = docs == null ? null : new ArrayList<String>(retry.size());
+			retryIDs = new ArrayList<String>(retry.size());
+			for(int i=0; i<retry.size(); i++)
+			{
+				pos = retry.get(i);
+				if(docs != null) retryDocs.add(docs.get(pos));
+				retryIDs.add(docIDs == null ? null : docIDs.get(pos));
+			}
 
-			String body = resp.bodyText();
-			JsonParser jp = new JsonParser();
-			JsonObject obj = jp.parseAsJsonObject(body);
-			outID = obj.getString("_id");
+			retried = sendBulkRequest(index, retryDocs, retryIDs);
+			for(int i=0; i<retry.size(); i++)
+			{
+				pos = retry.get(i);
+				if(i < retried.size())
+				{
+					results.set(pos, retried.get(i));
+				}
+				else
+				{
+					results.set(pos, missingBulkItem(results.get(pos)));
+				}
+			}
 		}
-		catch(Exception ex)
+
+		for(int i=0; i<size; i++)
 		{
-			logger.log(Level.WARNING,"Error saving doc",ex);
-			if(ex instanceof ECException) throw ((ECException)ex);
+			results.get(i).setPosition(from+i);
 		}
 
-		return outID;
+		return results;
 	}
 
 	/**
-	 * Use the _bulk api to create new docs from json.
+	 * A failed result for an item the bulk response left out, so it isn't mistaken for the
+	 * earlier rejection and the item isn't lost silently.
 	 * 
-	 * @param index
-	 * @param jsonStrs
+	 * @param sent the item's previous result
 	 * @return
 	 */
-	public List<String> multiCreateDoc(String index, List<String> jsonStrs) throws ECException
+	private static BulkItemResult missingBulkItem(BulkItemResult sent)
 	{
-		List<String> ids = null;
-		try
-		{
-			int size = jsonStrs.size();
-			ids = new ArrayList<String>(size);
-
-			String url = baseURL + index+"/_bulk";
+		BulkItemResult item = new BulkItemResult();
+		item.setAction(sent.getAction());
+		item.setID(sent.getID());
+		item.setErrorType("missing_result");
+		item.setErrorReason("The bulk response had no result for the item");
+		return item;
+	}
 
-			logger.info(url);
+	/**
+	 * Send a single _bulk request indexing the docs, or deleting the ids when jsonStrs is null.
+	 * 
+	 * @param index
+	 * @param jsonStrs null to delete the ids
+	 * @param ids may be null, or contain nulls, for generated ids
+	 * @return
+	 * @throws ECException
+	 */
+	protected List<BulkItemResult> sendBulkRequest(String index, List<String> jsonStrs, List<String> ids) throws ECException
+	{
+		String url = baseURL + index+"/_bulk";
 
-			HttpRequest req = null;
+		debug(url);
 
-			String jsonCMD = "{ \"index\" : { \"_index\" : \""+index+"\"} }\n";
+		HttpRequest req = HttpRequest.post(url);
+		req.bodyText(bulkBody(index, jsonStrs, ids), "application/x-ndjson");
 
-			int ind = 0;
+		int docs = ids == null ? jsonStrs.size() : ids.size();
+		long start = System.nanoTime();
 
-			int est = size;
-			String jsonRet = null;
-			if(size > bulkBatchSize) est = bulkBatchSize;
-			StringBuilder sb = null;
+		HttpResponse resp = null;
+		try
+		{
+			resp = sendRequest(req);
+		}
+		catch(HttpException ex)
+		{
+			throw new ECException("Error sending bulk request", ex);
+		}
+		finally
+		{
+			invalidateCache(index);
+		}
 
-			int remain = size;
-			int tgt = 0;
+		int status = resp == null ? 0 : resp.statusCode();
+		if(status == 429 || status == 503)
+		{
+			tuneBulk(start, docs, null);
+		}
 
-			JsonParser parser = new JsonParser();
-			JsonArray arr = null;
-			JsonObject obj = null;
+		logResponse("bulk response",resp);
 
-			while(ind < size)
-			{
-				req = HttpRequest.post(url);
+		List<BulkItemResult> results = parseBulkResponse(resp.bodyText(), 0);
 
-				sb = new StringBuilder(est*100);
-				if(remain > bulkBatchSize) tgt = bulkBatchSize;
-				else tgt = remain;
+		tuneBulk(start, docs, results);
 
-				for(int i=0; i<tgt; i++)
-				{
-					sb.append(jsonCMD);
-					sb.append(jsonStrs.get(ind)).append("\n");
-					ind++;
-				}
+		return results;
+	}
 
-				req.bodyText(sb.toString(), "application/x-ndjson");
+	/**
+	 * Build the NDJSON body of a _bulk request indexing the docs, or deleting the ids when
+	 * jsonStrs is null.
+	 * 
+	 * @param index
+	 * @param jsonStrs null to delete the ids
+	 * @param ids may be null, or contain nulls, for generated ids
+	 * @return
+	 */
+	protected String bulkBody(String index, List<String> jsonStrs, List<String> ids)
+	{
+		if(jsonStrs == null)
+		{
+			return bulkDeleteBody(index, ids);
+		}
 
-				HttpResponse resp = sendRequest(req);
+		int from = 0;
+		int to = jsonStrs.size();
 
-				logResponse("bulk response",resp);
+		String jsonCMD = "{ \"index\" : { \"_index\" : \""+index+"\"} }\n";
+		String idCMD = "{ \"index\" : { \"_index\" : \""+index+"\",\"_id\":\"";
+		String cmd2 = "\"}}\n";
 
-				jsonRet = resp.bodyText();
+		// size the buffer from the docs themselves, the action lines add about 60 chars each
+		int est = 0;
+		for(int i=from; i<to; i++)
+		{
+			est += jsonStrs.get(i).length() + 60 + index.length();
+		}
+		StringBuilder sb = new StringBuilder(est);
 
-				obj = parser.parseAsJsonObject(jsonRet);
+		String id = null;
+		for(int i=from; i<to; i++)
+		{
+			id = null;
+			if(ids != null) id = ids.get(i);
 
-				arr = obj.getJsonArray("items");
-				for(int i=0; i<tgt; i++)
-				{
-					obj = arr.getJsonObject(i);
-					ids.add(obj.getJsonObject("index").getString("_id"));
-				}
-				remain-=tgt;
+			if(id == null)
+			{
+				sb.append(jsonCMD);
 			}
+			else
+			{
+				sb.append(idCMD).append(id).append(cmd2);
+			}
+			sb.append(jsonStrs.get(i)).append("\n");
 		}
-		catch(Exception ex)
+
+		return sb.toString();
+	}
+
+	/**
+	 * Build the NDJSON body of a _bulk request deleting the ids.
+	 * 
+	 * @param index
+	 * @param ids
+	 * @return
+	 */
+	protected String bulkDeleteBody(String index, List<String> ids)
+	{
+		String cmd1 = "{ \"delete\" : { \"_index\" : \""+index+"\",\"_id\":\"";
+		String cmd2 = "\"}}\n";
+
+		int size = ids.size();
+		StringBuilder sb = new StringBuilder(size*(cmd1.length()+cmd2.length()+24));
+		for(int i=0; i<size; i++)
 		{
-			logger.log(Level.WARNING,"Error doing bulk create",ex);
-			if(ex instanceof ECException) throw ((ECException)ex);
+			sb.append(cmd1);
+			escapeJSON(ids.get(i), sb);
+			sb.append(cmd2);
 		}
-
-		return ids;
+		return sb.toString();
 	}
 
-	public void multiSaveDoc(String index, List<String> jsonStrs, List<String> ids) throws ECException
+	/**
+	 * Throw a BulkException if any item failed.
+	 * 
+	 * @param results
+	 * @throws BulkException
+	 */
+	protected void checkBulkResults(List<BulkItemResult> results) throws BulkException
 	{
-		try
+		int failed = 0;
+		for(BulkItemResult item : results)
 		{
-			int size = jsonStrs.size();
-			String url = baseURL + index+"/_bulk";
+			if(item.isFailed()) failed++;
+		}
 
-			logger.info(url);
+		if(failed > 0)
+		{
+			throw new BulkException(failed + " of " + results.size() + " bulk items failed", results);
+		}
+	}
 
-			HttpRequest req = null;
+	/**
+	 * Parse the items of a _bulk response.
+	 * 
+	 * @param jsonStr
+	 * @param offset added to each item's position
+	 * @return
+	 */
+	public List<BulkItemResult> parseBulkResponse(String jsonStr, int offset)
+	{
+		JsonParser parser = new JsonParser();
+		JsonObject obj = parser.parseAsJsonObject(jsonStr);
 
-			String jsonCMD = "{ \"index\" : { \"_index\" : \""+index+"\",\"_id\":\"";
-			String cmd2 = "\"}}\n";
-			int ind = 0;
+		// per item errors only need to be read when the request reports some
+		boolean errors = obj.getBoolean("errors", true);
 
-			int est = size;
-			if(size > bulkBatchSize) est = bulkBatchSize;
-			StringBuilder sb = null;
+		JsonArray arr = obj.getJsonArray("items");
+		int size = arr.size();
 
-			int remain = size;
-			int tgt = 0;
+		List<BulkItemResult> results = new ArrayList<BulkItemResult>(size);
 
-			String id = null;
+		BulkItemResult item = null;
+		String action = null;
+		JsonObject err = null;
 
-			while(ind < size)
+		for(int i=0; i<size; i++)
+		{
+			obj = arr.getJsonObject(i);
+
+			// each item has a single key naming the action
+			action = obj.fieldNames().iterator().next();
+			obj = obj.getJsonObject(action);
+
+			item = new BulkItemResult();
+			item.setPosition(offset+i);
+			item.setAction(action);
+			item.setID(obj.getString("_id"));
+			item.setStatus(obj.getInteger("status", 0));
+			item.setResult(obj.getString("result"));
+
+			err = null;
+			if(errors) err = obj.getJsonObject("error");
+			if(err != null)
 			{
-				req = HttpRequest.post(url);
-
-				sb = new StringBuilder(est*100);
-				if(remain > bulkBatchSize) tgt = bulkBatchSize;
-				else tgt = remain;
-
-				for(int i=0; i<tgt; i++)
-				{
-					id = ids.get(ind);
-					sb.append(jsonCMD).append(id).append(cmd2);
-					sb.append(jsonStrs.get(ind)).append("\n");
-					ind++;
-				}
-
-				req.bodyText(sb.toString(), "application/x-ndjson");
-
-				HttpResponse resp = sendRequest(req);
-
-				logResponse("bulk response",resp);
-
-				remain-=tgt;
+				item.setErrorType(err.getString("type"));
+				item.setErrorReason(err.getString("reason"));
 			}
+
+			results.add(item);
 		}
-		catch(Exception ex)
-		{
-			logger.log(Level.WARNING,"Error doing bulk save",ex);
-			if(ex instanceof ECException) throw ((ECException)ex);
-		}
+
+		return results;
 	}
 
 	public void deleteDoc(String index, String id) throws ECException
@@ -833,12 +3472,19 @@ public class ElasticClient
 			
 			if(!index.contains("*"))
 			{
-				logger.info(url);
+				debug(url);
 	
 	
 				req = HttpRequest.delete(url);
 	
-				resp = sendRequest(req);
+				try
+				{
+					resp = sendRequest(req);
+				}
+				finally
+				{
+					invalidateCache(index);
+				}
 	
 				logResponse("get response",resp);
 			}
@@ -855,15 +3501,88 @@ public class ElasticClient
 		}
 	}
 
-	public void deleteDocs(String index, List<String> ids) throws ECException
+	/**
+	 * Async deleteDoc, the future completes on the async executor.
+	 * 
+	 * @param index
+	 * @param id
+	 * @return
+	 */
+	public CompletableFuture<Void> deleteDocAsync(String index, String id)
+	{
+		return async(() -> {
+			deleteDoc(index,id);
+			return null;
+		});
+	}
+
+	/**
+	 * Delete the docs with the _bulk api in batches of deleteByIdBatchSize ids, sending up to
+	 * bulkConcurrency batches at once.  Returns a result per id in input order with a result of
+	 * deleted or not_found; ids that could not be deleted are included as failed items rather
+	 * than thrown.
+	 * 
+	 * @param index
+	 * @param ids
+	 * @return
+	 * @throws ECException
+	 */
+	public List<BulkItemResult> deleteDocs(String index, List<String> ids) throws ECException
 	{
-		/*
-        "query": {
-        	"ids" : {
-            "values" : ["1", "4", "100"]
-        	}
-    	}
-		 */
+		List<BulkItemResult> results = new ArrayList<BulkItemResult>();
+		if(ids == null || ids.size() == 0) return results;
+		if(index == null || index.trim().length() == 0) return results;
+
+		final int size = ids.size();
+		final int batch = Math.max(1, deleteByIdBatchSize);
+		int batches = (size + batch - 1)/batch;
+
+		if(bulkConcurrency <= 1 || batches == 1)
+		{
+			for(int ind=0; ind<size; ind+=batch)
+			{
+				results.addAll(sendBulk(index, null, ids, ind, Math.min(size, ind+batch)));
+			}
+			return results;
+		}
+
+		final AtomicInteger cnt = new AtomicInteger();
+		ExecutorService workers = Executors.newFixedThreadPool(Math.min(bulkConcurrency, batches), r -> {
+			Thread t = new Thread(r, "elastic-delete-" + cnt.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+
+		try
+		{
+			List<Future<List<BulkItemResult>>> futures = new ArrayList<Future<List<BulkItemResult>>>(batches);
+			for(int ind=0; ind<size; ind+=batch)
+			{
+				final int from = ind;
+				futures.add(workers.submit(() -> sendBulk(index, null, ids, from, Math.min(size, from+batch))));
+			}
+
+			for(Future<List<BulkItemResult>> f : futures)
+			{
+				results.addAll(f.get());
+			}
+		}
+		catch(InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new ECException("Interrupted deleting docs", ex);
+		}
+		catch(ExecutionException ex)
+		{
+			if(ex.getCause() instanceof ECException) throw (ECException)ex.getCause();
+			throw new ECException("Error deleting docs", ex.getCause());
+		}
+		finally
+		{
+			workers.shutdownNow();
+		}
+
+		return results;
 	}
 
 	public void deleteAllDocs(String index) throws ECException
@@ -872,17 +3591,25 @@ public class ElasticClient
 
 		String url = baseURL + index+"/_delete_by_query?conflicts=proceed";
 
-		logger.info(url);
+		debug(url);
 		HttpRequest req = HttpRequest.post(url);
 
 		String body = null;
 
 		body = "{\"query\":{\"match_all\": {}}}";	
-		logger.info(body);
+		debug(body);
 
 		req.bodyText(body, "application/json");
 
-		HttpResponse resp = sendRequest(req);
+		HttpResponse resp = null;
+		try
+		{
+			resp = sendRequest(req);
+		}
+		finally
+		{
+			invalidateCache(index);
+		}
 
 		logResponse("delete all response",resp);
 	}
@@ -890,7 +3617,7 @@ public class ElasticClient
 	public Map<String,Long> getSimpleAggregate(String index, String keywordField) throws ECException
 	{
 		String url = baseURL + index+"/_search";
-		logger.info(url);
+		debug(url);
 		HttpRequest req = HttpRequest.get(url);
 
 		if(keywordField != null)
@@ -898,7 +3625,7 @@ public class ElasticClient
 			if(!keywordField.endsWith(".keyword"))keywordField+=".keyword";
 
 			String body = "{\"size\":\"0\",\"aggs\":{\"keyagg\":{\"terms\":{\"field\": \""+keywordField+"\"}}}}";
-			logger.info(body);
+			debug(body);
 
 			req.bodyText(body, "application/json");
 		}
@@ -940,59 +3667,144 @@ public class ElasticClient
 		return m;	
 	}
 
+	/**
+	 * Escape the string for use inside a json string literal.  Returns the string itself when
+	 * nothing needs escaping.
+	 * 
+	 * @param str
+	 * @return
+	 */
 	public String escapeJSON(String str)
 	{
 		if(str == null || str.length() == 0) return str;
 
+		int i = firstEscape(str);
+		if(i < 0) return str;
+
+		StringBuilder sb = new StringBuilder(str.length() + 16);
+		escapeJSON(str, i, sb);
+		return sb.toString();
+	}
+
+	/**
+	 * Append the escaped string to the builder.
+	 * 
+	 * @param str
+	 * @param sb
+	 */
+	public static void escapeJSON(String str, StringBuilder sb)
+	{
+		if(str == null) return;
+
+		int i = firstEscape(str);
+		if(i < 0)
+		{
+			sb.append(str);
+			return;
+		}
+
+		escapeJSON(str, i, sb);
+	}
+
+	/**
+	 * The index of the first char that needs escaping, -1 if there are none.  A slash is only
+	 * escaped after a &lt; so that &lt;/script&gt; can't appear in the output.
+	 */
+	private static int firstEscape(String str)
+	{
 		int len = str.length();
-		char b;
 		char c = 0;
-		String hhhh;
-		StringWriter w = new StringWriter((int)(1.1*len));
-		for (int i = 0; i < len; i += 1) {
+		char b = 0;
+		for(int i=0; i<len; i++)
+		{
 			b = c;
 			c = str.charAt(i);
-			switch (c) {
-			case '\\':
-			case '"':
-				w.write('\\');
-				w.write(c);
-				break;
-			case '/':
-				if (b == '<') {
-					w.write('\\');
+			if(c < 128)
+			{
+				if(ASCII_ESCAPES[c] != null || (c == '/' && b == '<')) return i;
+			}
+			else if((c < '\u00a0') || (c >= '\u2000' && c < '\u2100'))
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Append str to sb, copying the chars before from as is and escaping the rest.
+	 */
+	private static void escapeJSON(String str, int from, StringBuilder sb)
+	{
+		int len = str.length();
+		sb.append(str, 0, from);
+
+		char b = 0;
+		char c = from > 0 ? str.charAt(from-1) : 0;
+		for(int i=from; i<len; i++)
+		{
+			b = c;
+			c = str.charAt(i);
+			if(c < 128)
+			{
+				if(ASCII_ESCAPES[c] != null)
+				{
+					sb.append(ASCII_ESCAPES[c]);
 				}
-				w.write(c);
-				break;
-			case '\b':
-				w.write("\\b");
-				break;
-			case '\t':
-				w.write("\\t");
-				break;
-			case '\n':
-				w.write("\\n");
-				break;
-			case '\f':
-				w.write("\\f");
-				break;
-			case '\r':
-				w.write("\\r");
-				break;
-			default:
-				if (c < ' ' || (c >= '\u0080' && c < '\u00a0')
-						|| (c >= '\u2000' && c < '\u2100')) {
-					w.write("\\u");
-					hhhh = Integer.toHexString(c);
-					w.write("0000", 0, 4 - hhhh.length());
-					w.write(hhhh);
-				} else {
-					w.write(c);
+				else
+				{
+					if(c == '/' && b == '<') sb.append('\\');
+					sb.append(c);
 				}
 			}
+			else if((c < '\u00a0') || (c >= '\u2000' && c < '\u2100'))
+			{
+				sb.append('\\').append('u');
+				sb.append(HEX[(c>>12)&0xf]).append(HEX[(c>>8)&0xf]).append(HEX[(c>>4)&0xf]).append(HEX[c&0xf]);
+			}
+			else
+			{
+				sb.append(c);
+			}
 		}
+	}
 
-		return w.toString();
+	/**
+	 * GZIPOutputStream with a configurable deflate level.
+	 */
+	private static class LevelGZIPOutputStream extends GZIPOutputStream
+	{
+		LevelGZIPOutputStream(OutputStream out, int level) throws IOException
+		{
+			super(out, 8192);
+			def.setLevel(level);
+		}
 	}
 
+	/**
+	 * Counts the bytes of a streamed body.
+	 */
+	private static class CountingOutputStream extends FilterOutputStream
+	{
+		long count = 0;
+
+		CountingOutputStream(OutputStream out)
+		{
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte b[], int off, int len) throws IOException
+		{
+			out.write(b, off, len);
+			count += len;
+		}
+	}
 }
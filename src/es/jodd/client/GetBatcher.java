@@ -0,0 +1,273 @@
+package es.jodd.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Merges getDoc calls for the same index that arrive within a short window into one _mget
+ * request and hands each caller its own doc.  A batch is sent once it holds maxIDs ids, by the
+ * caller that filled it, or when the window closes, by a background thread.  Callers block
+ * just as they would for a single get.
+ *
+ * @author aholinch
+ *
+ */
+public class GetBatcher
+{
+	protected ElasticClient client;
+
+	/**
+	 * How long the first id in a batch waits for others to join it.
+	 */
+	protected long windowMicros;
+
+	/**
+	 * The max number of ids in one _mget.
+	 */
+	protected int maxIDs;
+
+	private final Map<String,Batch> pending = new HashMap<String,Batch>();
+
+	private final ScheduledExecutorService timer;
+
+	private final ExecutorService senders;
+
+	private final AtomicLong requests = new AtomicLong();
+
+	private final AtomicLong gets = new AtomicLong();
+
+	private boolean closed = false;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param client
+	 * @param windowMicros
+	 * @param maxIDs
+	 */
+	public GetBatcher(ElasticClient client, long windowMicros, int maxIDs)
+	{
+		if(windowMicros < 1) windowMicros = 1;
+		if(maxIDs < 1) maxIDs = 1;
+
+		this.client = client;
+		this.windowMicros = windowMicros;
+		this.maxIDs = maxIDs;
+
+		timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "elastic-mget-timer");
+			t.setDaemon(true);
+			return t;
+		});
+
+		// batches are sent off the timer thread so a slow request doesn't hold up other windows
+		final AtomicInteger cnt = new AtomicInteger();
+		senders = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "elastic-mget-" + cnt.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	public long getWindowMicros()
+	{
+		return windowMicros;
+	}
+
+	public int getMaxIDs()
+	{
+		return maxIDs;
+	}
+
+	/**
+	 * Get the doc, sharing an _mget with other callers.  Throws an ECException with a 404 status
+	 * when the doc isn't found, as getDoc does.
+	 *
+	 * @param index
+	 * @param id
+	 * @return the doc as returned by GET index/_doc/id
+	 * @throws ECException
+	 */
+	public String get(String index, String id) throws ECException
+	{
+		CompletableFuture<String> f = new CompletableFuture<String>();
+		Batch full = null;
+
+		synchronized(this)
+		{
+			if(closed)
+			{
+				throw new ECException("Get batcher is closed");
+			}
+
+			Batch b = pending.get(index);
+			if(b == null)
+			{
+				b = new Batch(index);
+				pending.put(index, b);
+				final Batch sched = b;
+				timer.schedule(() -> dispatch(sched), windowMicros, TimeUnit.MICROSECONDS);
+			}
+
+			b.ids.add(id);
+			b.futures.add(f);
+			gets.incrementAndGet();
+
+			if(b.ids.size() >= maxIDs)
+			{
+				pending.remove(index);
+				full = b;
+			}
+		}
+
+		if(full != null)
+		{
+			send(full);
+		}
+
+		try
+		{
+			return f.get();
+		}
+		catch(InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new ECException("Interrupted waiting for doc", ex);
+		}
+		catch(ExecutionException ex)
+		{
+			Throwable t = ex.getCause();
+			if(t instanceof ECException) throw (ECException)t;
+			throw new ECException("Error getting doc", t);
+		}
+	}
+
+	/**
+	 * Number of _mget requests sent.
+	 *
+	 * @return
+	 */
+	public long getRequests()
+	{
+		return requests.get();
+	}
+
+	/**
+	 * Number of gets served.
+	 *
+	 * @return
+	 */
+	public long getGets()
+	{
+		return gets.get();
+	}
+
+	/**
+	 * Send what is pending and stop the background threads.
+	 */
+	public void close()
+	{
+		List<Batch> left = null;
+		synchronized(this)
+		{
+			if(closed) return;
+			closed = true;
+			left = new ArrayList<Batch>(pending.values());
+			pending.clear();
+		}
+
+		// no more windows close once the timer stops, so only these batches are left
+		timer.shutdownNow();
+
+		for(Batch b : left)
+		{
+			send(b);
+		}
+
+		senders.shutdown();
+	}
+
+	/**
+	 * Called when a batch's window closes, sends it unless it already went out full.
+	 */
+	private void dispatch(Batch b)
+	{
+		synchronized(this)
+		{
+			if(pending.get(b.index) != b) return;
+			pending.remove(b.index);
+		}
+
+		try
+		{
+			senders.execute(() -> send(b));
+		}
+		catch(RejectedExecutionException ex)
+		{
+			// closed between taking the batch and handing it over
+			send(b);
+		}
+	}
+
+	private void send(Batch b)
+	{
+		requests.incrementAndGet();
+
+		try
+		{
+			List<String> docs = client.multiGet(b.index, b.ids);
+
+			int size = b.futures.size();
+			String doc = null;
+			for(int i=0; i<size; i++)
+			{
+				// a short docs array leaves the rest not found rather than waiting forever
+				doc = i < docs.size() ? docs.get(i) : null;
+				if(doc != null)
+				{
+					b.futures.get(i).complete(doc);
+				}
+				else
+				{
+					ECException ec = new ECException("Not Found");
+					ec.setHttpStatus(404);
+					b.futures.get(i).completeExceptionally(ec);
+				}
+			}
+		}
+		catch(Throwable t)
+		{
+			// fail whatever wasn't completed so no caller waits forever
+			for(CompletableFuture<String> f : b.futures)
+			{
+				f.completeExceptionally(t);
+			}
+			if(t instanceof Error) throw (Error)t;
+		}
+	}
+
+	private static class Batch
+	{
+		final String index;
+
+		final List<String> ids = new ArrayList<String>();
+
+		final List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>();
+
+		Batch(String index)
+		{
+			this.index = index;
+		}
+	}
+}
@@ -0,0 +1,433 @@
+package es.jodd.client;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A minimal pull parser that walks UTF-8 JSON bytes in place.  Values that aren't needed are
+ * skipped without being decoded, and field names are matched against byte literals so walking
+ * an object doesn't allocate.
+ *
+ * @author aholinch
+ *
+ */
+public class JsonPullParser
+{
+	protected final byte buf[];
+
+	protected int pos;
+
+	protected final int end;
+
+	private int nameStart = 0;
+
+	private int nameEnd = 0;
+
+	/**
+	 * Parse the whole buffer.
+	 *
+	 * @param buf
+	 */
+	public JsonPullParser(byte buf[])
+	{
+		this(buf, 0, buf.length);
+	}
+
+	public JsonPullParser(byte buf[], int off, int len)
+	{
+		this.buf = buf;
+		this.pos = off;
+		this.end = off + len;
+	}
+
+	/**
+	 * Read a string field of the top level object, null if it isn't there.
+	 *
+	 * @param buf
+	 * @param name
+	 * @return
+	 */
+	public static String readTopLevelString(byte buf[], String name)
+	{
+		byte lit[] = name.getBytes(StandardCharsets.US_ASCII);
+
+		JsonPullParser p = new JsonPullParser(buf);
+		p.beginObject();
+		while(p.nextField())
+		{
+			if(p.fieldIs(lit)) return p.readString();
+			p.skipValue();
+		}
+		return null;
+	}
+
+	/**
+	 * The current offset into the buffer.
+	 *
+	 * @return
+	 */
+	public int position()
+	{
+		return pos;
+	}
+
+	/**
+	 * The next significant byte without consuming it, or -1 at the end.
+	 *
+	 * @return
+	 */
+	public int peek()
+	{
+		skipWhitespace();
+		if(pos >= end) return -1;
+		return buf[pos];
+	}
+
+	/**
+	 * Consume the opening brace of an object.
+	 */
+	public void beginObject()
+	{
+		expect('{');
+	}
+
+	/**
+	 * Consume the opening bracket of an array.
+	 */
+	public void beginArray()
+	{
+		expect('[');
+	}
+
+	/**
+	 * Move to the next field of the current object and past its colon.  Returns false, having
+	 * consumed the closing brace, when there are no more fields.
+	 *
+	 * @return
+	 */
+	public boolean nextField()
+	{
+		int c = peek();
+		if(c == ',')
+		{
+			pos++;
+			c = peek();
+		}
+
+		if(c == '}')
+		{
+			pos++;
+			return false;
+		}
+
+		if(c != '"')
+		{
+			throw error("Expected field name");
+		}
+
+		pos++;
+		nameStart = pos;
+		nameEnd = scanString();
+
+		expect(':');
+		return true;
+	}
+
+	/**
+	 * True if the current field name is the given ASCII literal.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public boolean fieldIs(byte name[])
+	{
+		int len = nameEnd - nameStart;
+		if(len != name.length) return false;
+
+		for(int i=0; i<len; i++)
+		{
+			if(buf[nameStart+i] != name[i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The current field name.
+	 *
+	 * @return
+	 */
+	public String fieldName()
+	{
+		return decode(nameStart, nameEnd);
+	}
+
+	/**
+	 * Move to the next element of the current array.  Returns false, having consumed the
+	 * closing bracket, when there are no more elements.
+	 *
+	 * @return
+	 */
+	public boolean nextElement()
+	{
+		int c = peek();
+		if(c == ',')
+		{
+			pos++;
+			c = peek();
+		}
+
+		if(c == ']')
+		{
+			pos++;
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * True, and consumes it, if the next value is null.
+	 *
+	 * @return
+	 */
+	public boolean nextIsNull()
+	{
+		if(peek() == 'n')
+		{
+			skipValue();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Read a string value, null for a JSON null.
+	 *
+	 * @return
+	 */
+	public String readString()
+	{
+		if(nextIsNull()) return null;
+
+		expect('"');
+		int start = pos;
+		int stop = scanString();
+		return decode(start, stop);
+	}
+
+	/**
+	 * Read a number as a long, 0 for a JSON null.
+	 *
+	 * @return
+	 */
+	public long readLong()
+	{
+		if(nextIsNull()) return 0;
+
+		int start = pos;
+		int stop = scanLiteral();
+
+		long val = 0;
+		boolean neg = false;
+		int i = start;
+		if(buf[i] == '-')
+		{
+			neg = true;
+			i++;
+		}
+
+		byte b;
+		for(; i<stop; i++)
+		{
+			b = buf[i];
+			if(b < '0' || b > '9')
+			{
+				// not a plain integer
+				return (long)Double.parseDouble(new String(buf, start, stop-start, StandardCharsets.ISO_8859_1));
+			}
+			val = val*10 + (b - '0');
+		}
+
+		return neg ? -val : val;
+	}
+
+	/**
+	 * Read a number as a double, NaN for a JSON null.
+	 *
+	 * @return
+	 */
+	public double readDouble()
+	{
+		if(nextIsNull()) return Double.NaN;
+
+		int start = pos;
+		int stop = scanLiteral();
+		return Double.parseDouble(new String(buf, start, stop-start, StandardCharsets.ISO_8859_1));
+	}
+
+	/**
+	 * Skip the next value, whatever it is, and return the offset of its first byte.  The
+	 * value ends at the current position afterwards.
+	 *
+	 * @return
+	 */
+	public int skipValue()
+	{
+		int c = peek();
+		int start = pos;
+
+		if(c == '"')
+		{
+			pos++;
+			scanString();
+		}
+		else if(c == '{' || c == '[')
+		{
+			int depth = 0;
+			byte b;
+			while(pos < end)
+			{
+				b = buf[pos++];
+				if(b == '"')
+				{
+					scanString();
+				}
+				else if(b == '{' || b == '[')
+				{
+					depth++;
+				}
+				else if(b == '}' || b == ']')
+				{
+					depth--;
+					if(depth == 0) return start;
+				}
+			}
+			throw error("Unterminated value");
+		}
+		else
+		{
+			scanLiteral();
+		}
+
+		return start;
+	}
+
+	/**
+	 * Scan past the closing quote of a string whose opening quote was already consumed.
+	 * Returns the offset of the closing quote.
+	 */
+	private int scanString()
+	{
+		byte b;
+		while(pos < end)
+		{
+			b = buf[pos];
+			if(b == '"')
+			{
+				pos++;
+				return pos-1;
+			}
+			if(b == '\\')
+			{
+				pos++;
+			}
+			pos++;
+		}
+		throw error("Unterminated string");
+	}
+
+	/**
+	 * Scan a number, true, false or null and return the offset just past it.
+	 */
+	private int scanLiteral()
+	{
+		byte b;
+		while(pos < end)
+		{
+			b = buf[pos];
+			if(b == ',' || b == '}' || b == ']' || b == ' ' || b == '\n' || b == '\r' || b == '\t')
+			{
+				break;
+			}
+			pos++;
+		}
+		return pos;
+	}
+
+	/**
+	 * Decode the string content between start and stop, handling escapes.
+	 */
+	private String decode(int start, int stop)
+	{
+		int i = start;
+		while(i < stop && buf[i] != '\\') i++;
+
+		if(i == stop)
+		{
+			// no escapes
+			return new String(buf, start, stop-start, StandardCharsets.UTF_8);
+		}
+
+		StringBuilder sb = new StringBuilder(stop-start);
+		sb.append(new String(buf, start, i-start, StandardCharsets.UTF_8));
+
+		int runStart = 0;
+		byte b;
+		while(i < stop)
+		{
+			b = buf[i];
+			if(b != '\\')
+			{
+				runStart = i;
+				while(i < stop && buf[i] != '\\') i++;
+				sb.append(new String(buf, runStart, i-runStart, StandardCharsets.UTF_8));
+				continue;
+			}
+
+			i++;
+			b = buf[i];
+			switch(b)
+			{
+			case 'b': sb.append('\b'); break;
+			case 'f': sb.append('\f'); break;
+			case 'n': sb.append('\n'); break;
+			case 'r': sb.append('\r'); break;
+			case 't': sb.append('\t'); break;
+			case 'u':
+				sb.append((char)Integer.parseInt(new String(buf, i+1, 4, StandardCharsets.ISO_8859_1), 16));
+				i += 4;
+				break;
+			default:
+				// quote, backslash and slash stand for themselves
+				sb.append((char)b);
+			}
+			i++;
+		}
+
+		return sb.toString();
+	}
+
+	private void skipWhitespace()
+	{
+		byte b;
+		while(pos < end)
+		{
+			b = buf[pos];
+			if(b != ' ' && b != '\n' && b != '\r' && b != '\t') return;
+			pos++;
+		}
+	}
+
+	private void expect(char c)
+	{
+		if(peek() != c)
+		{
+			throw error("Expected '" + c + "'");
+		}
+		pos++;
+	}
+
+	private IllegalStateException error(String msg)
+	{
+		return new IllegalStateException(msg + " at offset " + pos);
+	}
+}
@@ -0,0 +1,342 @@
+package es.jodd.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Caches index metadata such as index names and mappings.  Only one load per key runs at a
+ * time and concurrent callers wait for and share its result.  Once an entry is older than
+ * refreshAfter it is reloaded in the background while callers keep getting the old value,
+ * and once it is older than expireAfter callers wait for a fresh load.
+ *
+ * @author aholinch
+ *
+ */
+public class MetadataCache
+{
+	/**
+	 * Age in ms after which an entry is reloaded in the background.
+	 */
+	protected long refreshAfter = 60000L;
+
+	/**
+	 * Age in ms after which an entry is no longer returned.
+	 */
+	protected long expireAfter = 600000L;
+
+	private final Map<String,Entry> entries = new HashMap<String,Entry>();
+
+	private ExecutorService refresher = null;
+
+	private boolean closed = false;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong loads = new AtomicLong();
+
+	/**
+	 * Java logger.
+	 */
+	private static final Logger logger = Logger.getLogger(MetadataCache.class.getName());
+
+	/**
+	 * Default constructor.
+	 */
+	public MetadataCache()
+	{
+
+	}
+
+	/**
+	 * Constructor with the refresh and expire ages.
+	 *
+	 * @param refreshAfter in ms
+	 * @param expireAfter in ms
+	 */
+	public MetadataCache(long refreshAfter, long expireAfter)
+	{
+		this.refreshAfter = refreshAfter;
+		this.expireAfter = expireAfter;
+	}
+
+	public long getRefreshAfter()
+	{
+		return refreshAfter;
+	}
+
+	/**
+	 * Age in ms after which an entry is reloaded in the background.  Defaults to 60 seconds.
+	 *
+	 * @param millis
+	 */
+	public void setRefreshAfter(long millis)
+	{
+		refreshAfter = millis;
+	}
+
+	public long getExpireAfter()
+	{
+		return expireAfter;
+	}
+
+	/**
+	 * Age in ms after which callers wait for a fresh load.  Defaults to 10 minutes.
+	 *
+	 * @param millis
+	 */
+	public void setExpireAfter(long millis)
+	{
+		expireAfter = millis;
+	}
+
+	/**
+	 * Returns the cached value for the key, loading it if there is none.
+	 *
+	 * @param key
+	 * @param loader
+	 * @return
+	 * @throws ECException if the load fails or the cache is closed
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T get(final String key, final Loader<T> loader) throws ECException
+	{
+		Entry e = null;
+		CompletableFuture<Object> f = null;
+		boolean owner = false;
+
+		synchronized(this)
+		{
+			if(closed)
+			{
+				throw new ECException("Metadata cache is closed");
+			}
+
+			e = entries.get(key);
+			long age = 0;
+			if(e != null && e.loaded > 0)
+			{
+				age = System.currentTimeMillis() - e.loaded;
+				if(age < expireAfter)
+				{
+					if(age >= refreshAfter && e.pending == null)
+					{
+						e.pending = new CompletableFuture<Object>();
+						final Entry re = e;
+						getRefresher().execute(() -> load(key, re, loader));
+					}
+					hits.incrementAndGet();
+					return (T)e.value;
+				}
+			}
+
+			if(e == null)
+			{
+				e = new Entry();
+				entries.put(key, e);
+			}
+
+			if(e.pending == null)
+			{
+				e.pending = new CompletableFuture<Object>();
+				owner = true;
+			}
+			f = e.pending;
+		}
+
+		if(owner)
+		{
+			load(key, e, loader);
+		}
+
+		try
+		{
+			return (T)f.get();
+		}
+		catch(InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new ECException("Interrupted loading " + key, ex);
+		}
+		catch(ExecutionException ex)
+		{
+			Throwable t = ex.getCause();
+			if(t instanceof ECException) throw (ECException)t;
+			throw new ECException("Error loading " + key, t);
+		}
+	}
+
+	/**
+	 * Drop the entry for the key.
+	 *
+	 * @param key
+	 */
+	public synchronized void invalidate(String key)
+	{
+		entries.remove(key);
+	}
+
+	/**
+	 * Drop every entry.
+	 */
+	public synchronized void clear()
+	{
+		entries.clear();
+	}
+
+	/**
+	 * Stop the background refresh thread and fail every load still pending, since a queued
+	 * refresh may never run.  Later calls to get are rejected.
+	 */
+	public void close()
+	{
+		List<CompletableFuture<Object>> pending = new ArrayList<CompletableFuture<Object>>();
+
+		synchronized(this)
+		{
+			if(closed) return;
+			closed = true;
+
+			if(refresher != null)
+			{
+				refresher.shutdownNow();
+				refresher = null;
+			}
+
+			for(Entry e : entries.values())
+			{
+				if(e.pending != null)
+				{
+					pending.add(e.pending);
+					e.pending = null;
+				}
+			}
+			entries.clear();
+		}
+
+		ECException ex = new ECException("Metadata cache is closed");
+		for(CompletableFuture<Object> f : pending)
+		{
+			f.completeExceptionally(ex);
+		}
+	}
+
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * Number of loads, counting background refreshes.
+	 *
+	 * @return
+	 */
+	public long getLoads()
+	{
+		return loads.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		int size = 0;
+		synchronized(this)
+		{
+			size = entries.size();
+		}
+		return "MetadataCache[size=" + size + ", hits=" + getHits() + ", loads=" + getLoads() + "]";
+	}
+
+	/**
+	 * Load the value and hand it to everyone waiting on the entry.  A failed background refresh
+	 * leaves the old value in place.  The waiters are released however the loader fails, and
+	 * an Error is rethrown once they have been.
+	 */
+	private void load(String key, Entry e, Loader<?> loader)
+	{
+		CompletableFuture<Object> f = null;
+		Object value = null;
+		Throwable err = null;
+
+		loads.incrementAndGet();
+		try
+		{
+			value = loader.load();
+		}
+		catch(Throwable t)
+		{
+			err = t;
+		}
+
+		synchronized(this)
+		{
+			f = e.pending;
+			e.pending = null;
+			if(f == null)
+			{
+				// the cache was closed and has already failed the waiters
+				if(err instanceof Error) throw (Error)err;
+				return;
+			}
+			if(err == null)
+			{
+				e.value = value;
+				e.loaded = System.currentTimeMillis();
+			}
+			else if(e.loaded == 0 && entries.get(key) == e)
+			{
+				// nothing to fall back on so don't keep the empty entry
+				entries.remove(key);
+			}
+		}
+
+		if(err == null)
+		{
+			f.complete(value);
+		}
+		else
+		{
+			logger.log(Level.WARNING, "Error loading " + key, err);
+			f.completeExceptionally(err);
+			if(err instanceof Error) throw (Error)err;
+		}
+	}
+
+	private synchronized ExecutorService getRefresher()
+	{
+		if(refresher == null)
+		{
+			refresher = Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, "elastic-metadata-refresh");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		return refresher;
+	}
+
+	/**
+	 * Loads the value for a key.
+	 */
+	public interface Loader<T>
+	{
+		T load() throws ECException;
+	}
+
+	private static class Entry
+	{
+		Object value;
+
+		long loaded;
+
+		CompletableFuture<Object> pending;
+	}
+}
@@ -0,0 +1,168 @@
+package es.jodd.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects searches, possibly against different indices, to be sent together in one _msearch
+ * request.  Running it returns a SearchResults per search in the order they were added.  A
+ * search that fails on the cluster doesn't fail the others, its SearchResults carries the
+ * error instead.
+ *
+ * @author aholinch
+ *
+ */
+public class MultiSearch
+{
+	protected ElasticClient client;
+
+	protected final List<String> indices = new ArrayList<String>();
+
+	protected final List<String> bodies = new ArrayList<String>();
+
+	protected final List<Integer> maxHits = new ArrayList<Integer>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param client
+	 */
+	public MultiSearch(ElasticClient client)
+	{
+		this.client = client;
+	}
+
+	/**
+	 * Add a match query, see ElasticClient.runMatchQuery.
+	 *
+	 * @param index
+	 * @param field
+	 * @param value
+	 * @param maxHits 0 to only count the matches
+	 * @return the position of the search in the results
+	 */
+	public int addMatchQuery(String index, String field, String value, int maxHits)
+	{
+		return add(index, client.matchQueryBody(field, value, maxHits), maxHits);
+	}
+
+	/**
+	 * Add a query string query, see ElasticClient.runQueryStringQuery.
+	 *
+	 * @param index
+	 * @param query
+	 * @param maxHits 0 to only count the matches
+	 * @return the position of the search in the results
+	 */
+	public int addQueryStringQuery(String index, String query, int maxHits)
+	{
+		return add(index, client.queryStringQueryBody(query, maxHits), maxHits);
+	}
+
+	/**
+	 * Add a search with its own body.
+	 *
+	 * @param index
+	 * @param body the _search body, may be null
+	 * @param maxHits the number of hits to parse, 0 to only count the matches
+	 * @return the position of the search in the results
+	 * @throws IllegalArgumentException if the index is null
+	 */
+	public synchronized int add(String index, String body, int maxHits)
+	{
+		if(index == null)
+		{
+			throw new IllegalArgumentException("An index is needed for each search");
+		}
+
+		if(body == null)
+		{
+			body = "{}";
+		}
+		else
+		{
+			// each search is one line of NDJSON, newlines outside strings are just whitespace
+			body = body.replace('\n', ' ').replace('\r', ' ');
+		}
+
+		if(maxHits == 0 && body.indexOf("\"size\"") < 0)
+		{
+			// _msearch can't count, so ask for no hits instead
+			body = body.trim();
+			body = "{\"size\":0" + (body.length() > 2 ? "," : "") + body.substring(1);
+		}
+
+		indices.add(index);
+		bodies.add(body);
+		this.maxHits.add(maxHits);
+		return indices.size()-1;
+	}
+
+	public synchronized int size()
+	{
+		return indices.size();
+	}
+
+	public synchronized String getIndex(int pos)
+	{
+		return indices.get(pos);
+	}
+
+	public synchronized String getBody(int pos)
+	{
+		return bodies.get(pos);
+	}
+
+	public synchronized int getMaxHits(int pos)
+	{
+		return maxHits.get(pos);
+	}
+
+	/**
+	 * A consistent copy of the searches, taken under one lock so that a search added meanwhile
+	 * can't leave the request body and the hit counts out of step.
+	 *
+	 * @return
+	 */
+	synchronized Snapshot snapshot()
+	{
+		Snapshot s = new Snapshot(indices.size());
+		for(int i=0; i<s.maxHits.length; i++)
+		{
+			s.indices[i] = indices.get(i);
+			s.bodies[i] = bodies.get(i);
+			s.maxHits[i] = maxHits.get(i);
+		}
+		return s;
+	}
+
+	/**
+	 * Send the searches in one request.
+	 *
+	 * @return a SearchResults per search in the order they were added
+	 * @throws ECException if the request as a whole fails
+	 */
+	public List<SearchResults> run() throws ECException
+	{
+		return client.multiSearch(this);
+	}
+
+	/**
+	 * The searches at one point in time.
+	 */
+	static class Snapshot
+	{
+		final String indices[];
+
+		final String bodies[];
+
+		final int maxHits[];
+
+		Snapshot(int size)
+		{
+			indices = new String[size];
+			bodies = new String[size];
+			maxHits = new int[size];
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package es.jodd.client;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One elasticsearch node in a multi-node client along with its health.
+ *
+ * @author aholinch
+ *
+ */
+public class Node
+{
+	/**
+	 * The base URL for the node, e.g. http://es1:9200/.
+	 */
+	protected String url;
+
+	protected String protocol;
+
+	protected String host;
+
+	protected int port;
+
+	/**
+	 * Whether the node is currently accepting requests.
+	 */
+	protected volatile boolean alive = true;
+
+	/**
+	 * When the node was last marked dead.
+	 */
+	protected volatile long deadSince = 0;
+
+	/**
+	 * Number of failures since the node was last alive.
+	 */
+	protected final AtomicInteger failures = new AtomicInteger();
+
+	/**
+	 * Number of requests currently being sent to the node.
+	 */
+	protected final AtomicInteger outstanding = new AtomicInteger();
+
+	/**
+	 * Constructor with the node URL.
+	 *
+	 * @param url
+	 */
+	public Node(String url)
+	{
+		if(!url.endsWith("/"))
+		{
+			url += "/";
+		}
+		this.url = url;
+
+		jodd.http.HttpRequest req = jodd.http.HttpRequest.get(url);
+		protocol = req.protocol();
+		host = req.host();
+		port = req.port();
+	}
+
+	public String getURL()
+	{
+		return url;
+	}
+
+	public String getProtocol()
+	{
+		return protocol;
+	}
+
+	public String getHost()
+	{
+		return host;
+	}
+
+	public int getPort()
+	{
+		return port;
+	}
+
+	public boolean isAlive()
+	{
+		return alive;
+	}
+
+	public long getDeadSince()
+	{
+		return deadSince;
+	}
+
+	public int getFailures()
+	{
+		return failures.get();
+	}
+
+	public int getOutstanding()
+	{
+		return outstanding.get();
+	}
+
+	/**
+	 * Take the node out of rotation.
+	 */
+	public void markDead()
+	{
+		failures.incrementAndGet();
+		if(alive)
+		{
+			deadSince = System.currentTimeMillis();
+			alive = false;
+		}
+	}
+
+	/**
+	 * Put the node back into rotation.
+	 */
+	public void markAlive()
+	{
+		failures.set(0);
+		alive = true;
+	}
+
+	@Override
+	public String toString()
+	{
+		return url + (alive?" alive":" dead") + " outstanding=" + outstanding.get();
+	}
+}
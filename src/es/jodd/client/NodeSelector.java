@@ -0,0 +1,209 @@
+package es.jodd.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Chooses which node a request goes to and keeps track of dead nodes.
+ *
+ * @author aholinch
+ *
+ */
+public class NodeSelector
+{
+	/**
+	 * Take turns across the live nodes.
+	 */
+	public static final String ROUND_ROBIN = "round_robin";
+
+	/**
+	 * Pick the live node with the fewest requests in flight.
+	 */
+	public static final String LEAST_OUTSTANDING = "least_outstanding";
+
+	protected final List<Node> nodes;
+
+	protected String strategy = ROUND_ROBIN;
+
+	private final AtomicInteger next = new AtomicInteger();
+
+	private ScheduledExecutorService healthChecker = null;
+
+	/**
+	 * Java logger.
+	 */
+	private static final Logger logger = Logger.getLogger(NodeSelector.class.getName());
+
+	/**
+	 * Constructor with the node base URLs.
+	 *
+	 * @param urls
+	 */
+	public NodeSelector(List<String> urls)
+	{
+		if(urls == null || urls.size() == 0)
+		{
+			throw new IllegalArgumentException("At least one node URL is required");
+		}
+
+		List<Node> list = new ArrayList<Node>(urls.size());
+		for(String url : urls)
+		{
+			list.add(new Node(url.trim()));
+		}
+		nodes = Collections.unmodifiableList(list);
+	}
+
+	public List<Node> getNodes()
+	{
+		return nodes;
+	}
+
+	public String getStrategy()
+	{
+		return strategy;
+	}
+
+	/**
+	 * Either ROUND_ROBIN or LEAST_OUTSTANDING.
+	 *
+	 * @param str
+	 */
+	public void setStrategy(String str)
+	{
+		if(str != null)
+		{
+			str = str.toLowerCase();
+		}
+
+		if(!ROUND_ROBIN.equals(str) && !LEAST_OUTSTANDING.equals(str))
+		{
+			throw new IllegalArgumentException("Unknown strategy: " + str);
+		}
+		strategy = str;
+	}
+
+	/**
+	 * Choose the node for the next request.  When every node is dead the one that died
+	 * longest ago is returned so that requests still have somewhere to go.
+	 *
+	 * @return
+	 */
+	public Node select()
+	{
+		int size = nodes.size();
+		int start = next.getAndIncrement() & Integer.MAX_VALUE;
+
+		Node best = null;
+		Node n = null;
+
+		for(int i=0; i<size; i++)
+		{
+			n = nodes.get((start+i)%size);
+			if(!n.isAlive()) continue;
+
+			if(!LEAST_OUTSTANDING.equals(strategy))
+			{
+				return n;
+			}
+
+			if(best == null || n.getOutstanding() < best.getOutstanding())
+			{
+				best = n;
+			}
+		}
+
+		if(best != null) return best;
+
+		for(int i=0; i<size; i++)
+		{
+			n = nodes.get(i);
+			if(best == null || n.getDeadSince() < best.getDeadSince())
+			{
+				best = n;
+			}
+		}
+
+		return best;
+	}
+
+	/**
+	 * Number of nodes currently in rotation.
+	 *
+	 * @return
+	 */
+	public int getAliveCount()
+	{
+		int cnt = 0;
+		for(Node n : nodes)
+		{
+			if(n.isAlive()) cnt++;
+		}
+		return cnt;
+	}
+
+	/**
+	 * Periodically run the check against dead nodes and mark them alive when it passes.
+	 *
+	 * @param check
+	 * @param intervalMillis
+	 */
+	public synchronized void startHealthChecks(final Predicate<Node> check, long intervalMillis)
+	{
+		stopHealthChecks();
+
+		healthChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "elastic-node-health");
+			t.setDaemon(true);
+			return t;
+		});
+
+		healthChecker.scheduleWithFixedDelay(() -> checkDeadNodes(check), intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop the background health checks.
+	 */
+	public synchronized void stopHealthChecks()
+	{
+		if(healthChecker != null)
+		{
+			healthChecker.shutdownNow();
+			healthChecker = null;
+		}
+	}
+
+	/**
+	 * Run the check once against every dead node.
+	 *
+	 * @param check
+	 */
+	public void checkDeadNodes(Predicate<Node> check)
+	{
+		for(Node n : nodes)
+		{
+			if(n.isAlive()) continue;
+
+			try
+			{
+				if(check.test(n))
+				{
+					logger.info("Node back in rotation: " + n.getURL());
+					n.markAlive();
+				}
+			}
+			catch(Exception ex)
+			{
+				logger.log(Level.FINE, "Health check failed for " + n.getURL(), ex);
+			}
+		}
+	}
+}
@@ -0,0 +1,324 @@
+package es.jodd.client;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of search response bodies keyed by the search URL and request body.  Entries
+ * are evicted least recently used first once maxEntries or maxBytes is reached, and expire after
+ * the TTL of their index.  Writes through the client invalidate the entries of the index they
+ * touch.  Responses are kept as the raw bytes so every caller parses its own SearchResults.
+ *
+ * @author aholinch
+ *
+ */
+public class QueryCache
+{
+	/**
+	 * The max number of cached responses.
+	 */
+	protected int maxEntries = 1000;
+
+	/**
+	 * The max total size of the cached responses, 0 for no limit.
+	 */
+	protected long maxBytes = 64L*1024L*1024L;
+
+	/**
+	 * How long a response is kept when its index has no TTL of its own.
+	 */
+	protected long defaultTTL = 60000L;
+
+	/**
+	 * TTL in ms by index name.
+	 */
+	protected final Map<String,Long> indexTTLs = new HashMap<String,Long>();
+
+	private final LinkedHashMap<String,Entry> entries = new LinkedHashMap<String,Entry>(64, 0.75f, true);
+
+	private long bytes = 0;
+
+	/**
+	 * Bumped on every invalidation so a response fetched before a write isn't cached after it.
+	 */
+	private long generation = 0;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	private final AtomicLong invalidations = new AtomicLong();
+
+	/**
+	 * Default constructor.
+	 */
+	public QueryCache()
+	{
+
+	}
+
+	/**
+	 * Constructor with the size cap and default TTL.
+	 *
+	 * @param maxEntries
+	 * @param defaultTTL in ms
+	 */
+	public QueryCache(int maxEntries, long defaultTTL)
+	{
+		setMaxEntries(maxEntries);
+		setDefaultTTL(defaultTTL);
+	}
+
+	public int getMaxEntries()
+	{
+		return maxEntries;
+	}
+
+	public synchronized void setMaxEntries(int num)
+	{
+		if(num < 1) num = 1;
+		maxEntries = num;
+		trim();
+	}
+
+	public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	/**
+	 * Cap on the total size of the cached responses.  Defaults to 64 MB, 0 disables the cap.
+	 *
+	 * @param num
+	 */
+	public synchronized void setMaxBytes(long num)
+	{
+		if(num < 0) num = 0;
+		maxBytes = num;
+		trim();
+	}
+
+	public long getDefaultTTL()
+	{
+		return defaultTTL;
+	}
+
+	/**
+	 * The TTL in ms for indices without one of their own.  Defaults to 60 seconds.
+	 *
+	 * @param millis
+	 */
+	public void setDefaultTTL(long millis)
+	{
+		defaultTTL = millis;
+	}
+
+	/**
+	 * Set the TTL in ms for one index, 0 to never cache it.
+	 *
+	 * @param index
+	 * @param millis
+	 */
+	public synchronized void setIndexTTL(String index, long millis)
+	{
+		indexTTLs.put(index, millis);
+	}
+
+	public synchronized long getIndexTTL(String index)
+	{
+		Long ttl = indexTTLs.get(index);
+		if(ttl == null) return defaultTTL;
+		return ttl;
+	}
+
+	/**
+	 * Build the cache key for a search.
+	 *
+	 * @param url
+	 * @param body may be null
+	 * @return
+	 */
+	public String key(String url, String body)
+	{
+		if(body == null) return url;
+		return url + "\n" + body;
+	}
+
+	/**
+	 * The generation to pass to put for a response fetched from now on.
+	 *
+	 * @return
+	 */
+	public synchronized long generation()
+	{
+		return generation;
+	}
+
+	/**
+	 * Returns the cached response body or null.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public byte[] get(String key)
+	{
+		Entry e = null;
+		synchronized(this)
+		{
+			e = entries.get(key);
+			if(e != null && e.expires < System.currentTimeMillis())
+			{
+				remove(key);
+				evictions.incrementAndGet();
+				e = null;
+			}
+		}
+
+		if(e == null)
+		{
+			misses.incrementAndGet();
+			return null;
+		}
+
+		hits.incrementAndGet();
+		return e.body;
+	}
+
+	/**
+	 * Cache a response body unless the index was written to since gen was read.
+	 *
+	 * @param index
+	 * @param key
+	 * @param body
+	 * @param gen the generation read before the search was sent
+	 */
+	public synchronized void put(String index, String key, byte body[], long gen)
+	{
+		if(gen != generation) return;
+
+		long ttl = getIndexTTL(index);
+		if(ttl <= 0) return;
+		if(maxBytes > 0 && body.length > maxBytes) return;
+
+		remove(key);
+
+		Entry e = new Entry();
+		e.index = index;
+		e.body = body;
+		e.expires = System.currentTimeMillis() + ttl;
+		entries.put(key, e);
+		bytes += body.length;
+
+		trim();
+	}
+
+	/**
+	 * Drop the entries for the index, along with any entry whose index is a wildcard or list
+	 * that might include it.  Searches against an alias of the index are not dropped.
+	 *
+	 * @param index
+	 */
+	public synchronized void invalidate(String index)
+	{
+		generation++;
+		invalidations.incrementAndGet();
+
+		Iterator<Entry> iter = entries.values().iterator();
+		Entry e = null;
+		while(iter.hasNext())
+		{
+			e = iter.next();
+			if(index == null || e.index.equals(index) || e.index.indexOf('*') >= 0 || e.index.indexOf(',') >= 0)
+			{
+				bytes -= e.body.length;
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * Drop every entry.
+	 */
+	public void clear()
+	{
+		invalidate(null);
+	}
+
+	public synchronized int size()
+	{
+		return entries.size();
+	}
+
+	public synchronized long getBytes()
+	{
+		return bytes;
+	}
+
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * Entries dropped for size or age, not counting invalidations.
+	 *
+	 * @return
+	 */
+	public long getEvictions()
+	{
+		return evictions.get();
+	}
+
+	public long getInvalidations()
+	{
+		return invalidations.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "QueryCache[size=" + size() + ", bytes=" + getBytes() + ", hits=" + getHits() + ", misses=" + getMisses()
+			+ ", evictions=" + getEvictions() + ", invalidations=" + getInvalidations() + "]";
+	}
+
+	private void remove(String key)
+	{
+		Entry e = entries.remove(key);
+		if(e != null) bytes -= e.body.length;
+	}
+
+	/**
+	 * Evict least recently used entries until both caps are met.
+	 */
+	private void trim()
+	{
+		Iterator<Entry> iter = entries.values().iterator();
+		Entry e = null;
+		while(iter.hasNext() && (entries.size() > maxEntries || (maxBytes > 0 && bytes > maxBytes)))
+		{
+			e = iter.next();
+			bytes -= e.body.length;
+			iter.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	private static class Entry
+	{
+		String index;
+
+		byte body[];
+
+		long expires;
+	}
+}
@@ -0,0 +1,262 @@
+package es.jodd.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import jodd.http.HttpException;
+import jodd.http.HttpRequest;
+
+/**
+ * Decides whether a failed request is sent again and how long to wait first.  Connection errors
+ * and 502, 503 and 504 responses are retried for idempotent requests only, while 429 is always
+ * retried since the cluster rejected the request without running it.  Waits grow exponentially
+ * with full jitter so clients don't retry in lock step.  Retries draw from a budget that is
+ * refilled by successful requests, so a struggling cluster sees at most a fraction of extra
+ * traffic.  Subclass to change any of the rules.
+ *
+ * @author aholinch
+ *
+ */
+public class RetryPolicy
+{
+	/**
+	 * Max retries of a single request.
+	 */
+	protected int maxRetries = 3;
+
+	/**
+	 * Upper bound in ms of the wait before the first retry, doubled for each later one.
+	 */
+	protected long initialBackoff = 100L;
+
+	/**
+	 * Upper bound in ms of any wait.
+	 */
+	protected long maxBackoff = 5000L;
+
+	/**
+	 * Retries earned by each successful request.
+	 */
+	protected double budgetRatio = 0.1;
+
+	/**
+	 * The most retries that can be saved up.
+	 */
+	protected double maxBudget = 10;
+
+	private double budget;
+
+	private long retries = 0;
+
+	private long budgetExhausted = 0;
+
+	/**
+	 * Default constructor.
+	 */
+	public RetryPolicy()
+	{
+		budget = maxBudget;
+	}
+
+	/**
+	 * Constructor with the retry count and backoff.
+	 *
+	 * @param maxRetries
+	 * @param initialBackoff in ms
+	 * @param maxBackoff in ms
+	 */
+	public RetryPolicy(int maxRetries, long initialBackoff, long maxBackoff)
+	{
+		this();
+		this.maxRetries = maxRetries;
+		this.initialBackoff = initialBackoff;
+		this.maxBackoff = maxBackoff;
+	}
+
+	public int getMaxRetries()
+	{
+		return maxRetries;
+	}
+
+	public void setMaxRetries(int num)
+	{
+		if(num < 0) num = 0;
+		maxRetries = num;
+	}
+
+	public long getInitialBackoff()
+	{
+		return initialBackoff;
+	}
+
+	public void setInitialBackoff(long millis)
+	{
+		initialBackoff = millis;
+	}
+
+	public long getMaxBackoff()
+	{
+		return maxBackoff;
+	}
+
+	public void setMaxBackoff(long millis)
+	{
+		maxBackoff = millis;
+	}
+
+	public double getBudgetRatio()
+	{
+		return budgetRatio;
+	}
+
+	/**
+	 * Retries earned by each successful request, e.g. 0.1 allows about one retry per ten
+	 * requests once the saved up budget is spent.
+	 *
+	 * @param ratio
+	 */
+	public void setBudgetRatio(double ratio)
+	{
+		budgetRatio = ratio;
+	}
+
+	public double getMaxBudget()
+	{
+		return maxBudget;
+	}
+
+	public synchronized void setMaxBudget(double num)
+	{
+		maxBudget = num;
+		if(budget > maxBudget) budget = maxBudget;
+	}
+
+	/**
+	 * True if the request should be sent again.
+	 *
+	 * @param req
+	 * @param attempt retries already made
+	 * @param status the response status, 0 when there was an error
+	 * @param error the transport error or null
+	 * @return
+	 */
+	public boolean shouldRetry(HttpRequest req, int attempt, int status, Throwable error)
+	{
+		if(attempt >= maxRetries) return false;
+
+		if(error != null)
+		{
+			return isRetryableError(error) && isIdempotent(req);
+		}
+
+		if(status == 429) return true;
+
+		return isRetryableStatus(status) && isIdempotent(req);
+	}
+
+	/**
+	 * Connection errors, but not a node whose circuit is open.
+	 *
+	 * @param error
+	 * @return
+	 */
+	public boolean isRetryableError(Throwable error)
+	{
+		return error instanceof HttpException && !(error instanceof CircuitOpenException);
+	}
+
+	/**
+	 * Statuses that mean the node or a proxy in front of it couldn't take the request.
+	 *
+	 * @param status
+	 * @return
+	 */
+	public boolean isRetryableStatus(int status)
+	{
+		return status == 502 || status == 503 || status == 504;
+	}
+
+	/**
+	 * True if sending the request twice has the same effect as sending it once.  A POST is only
+	 * idempotent for the read endpoints; POST _doc creates a new doc each time.
+	 *
+	 * @param req
+	 * @return
+	 */
+	public boolean isIdempotent(HttpRequest req)
+	{
+		String method = req.method();
+		if(!"POST".equals(method)) return true;
+
+		String path = req.path();
+		return path.endsWith("/_search") || path.endsWith("/_count") || path.endsWith("/_mget")
+			|| path.endsWith("/_msearch") || path.endsWith("/_search/scroll");
+	}
+
+	/**
+	 * The wait in ms before the retry, random between 0 and the capped exponential backoff.
+	 *
+	 * @param attempt retries already made
+	 * @return
+	 */
+	public long backoffMillis(int attempt)
+	{
+		long cap = initialBackoff << Math.min(attempt, 30);
+		if(cap > maxBackoff || cap <= 0) cap = maxBackoff;
+		if(cap <= 0) return 0;
+		return ThreadLocalRandom.current().nextLong(cap+1);
+	}
+
+	/**
+	 * Take one retry from the budget, false if it is spent.
+	 *
+	 * @return
+	 */
+	public synchronized boolean acquireRetry()
+	{
+		if(budget < 1)
+		{
+			budgetExhausted++;
+			return false;
+		}
+		budget -= 1;
+		retries++;
+		return true;
+	}
+
+	/**
+	 * Credit the budget for a successful request.
+	 */
+	public synchronized void recordSuccess()
+	{
+		if(budget < maxBudget)
+		{
+			budget = Math.min(maxBudget, budget + budgetRatio);
+		}
+	}
+
+	/**
+	 * Number of retries made.
+	 *
+	 * @return
+	 */
+	public synchronized long getRetries()
+	{
+		return retries;
+	}
+
+	/**
+	 * Number of retries skipped because the budget was spent.
+	 *
+	 * @return
+	 */
+	public synchronized long getBudgetExhausted()
+	{
+		return budgetExhausted;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "RetryPolicy[retries=" + retries + ", budget=" + String.format("%.1f", budget) + ", budgetExhausted=" + budgetExhausted + "]";
+	}
+}
@@ -1,6 +1,12 @@
 package es.jodd.client;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
 import jodd.json.JsonObject;
+import jodd.json.JsonParser;
 
 /**
  * A search hit holds the search score and JSON object.
@@ -25,11 +31,31 @@ public class SearchHit
 	 */
 	protected String id;
 
+	/**
+	 * The raw json array of sort values, used for search_after.
+	 */
+	protected String sort;
+
 	/**
 	 * The source object as a JODD json object.
 	 */
 	protected JsonObject obj;
 
+	/**
+	 * The response buffer holding the raw UTF-8 source, shared by every hit in the response.
+	 */
+	protected byte sourceBuf[];
+
+	/**
+	 * Where the source starts in the buffer.
+	 */
+	protected int sourceOffset;
+
+	/**
+	 * The length in bytes of the source.
+	 */
+	protected int sourceLength;
+
 	/**
 	 * Default constructor.
 	 */
@@ -48,6 +74,21 @@ public class SearchHit
 		id = str;
 	}
 
+	/**
+	 * Returns the hit's sort values as a raw json array, null if the search wasn't sorted.
+	 * 
+	 * @return
+	 */
+	public String getSortValues()
+	{
+		return sort;
+	}
+
+	public void setSortValues(String json)
+	{
+		sort = json;
+	}
+
 	public double getScore()
 	{
 		return score;
@@ -58,11 +99,23 @@ public class SearchHit
 		score = val;
 	}
 
+	/**
+	 * Returns the source json, decoding it from the response bytes on first use.
+	 * 
+	 * @return
+	 */
 	public String getSource()
 	{
-		if(source == null && obj != null)
+		if(source == null)
 		{
-			source = obj.toString();
+			if(sourceBuf != null)
+			{
+				source = new String(sourceBuf, sourceOffset, sourceLength, StandardCharsets.UTF_8);
+			}
+			else if(obj != null)
+			{
+				source = obj.toString();
+			}
 		}
 		return source;
 	}
@@ -70,10 +123,73 @@ public class SearchHit
 	public void setSource(String str)
 	{
 		source = str;
+		sourceBuf = null;
+	}
+
+	/**
+	 * Point the source at a slice of the response buffer.  The buffer is not copied, so it
+	 * stays reachable for as long as the hit is.
+	 * 
+	 * @param buf
+	 * @param off
+	 * @param len
+	 */
+	public void setSourceBytes(byte buf[], int off, int len)
+	{
+		sourceBuf = buf;
+		sourceOffset = off;
+		sourceLength = len;
+		source = null;
+		obj = null;
+	}
+
+	/**
+	 * Returns a copy of the raw UTF-8 source.
+	 * 
+	 * @return
+	 */
+	public byte[] getSourceBytes()
+	{
+		if(sourceBuf != null)
+		{
+			return Arrays.copyOfRange(sourceBuf, sourceOffset, sourceOffset+sourceLength);
+		}
+
+		String str = getSource();
+		if(str == null) return null;
+		return str.getBytes(StandardCharsets.UTF_8);
 	}
 
+	/**
+	 * Write the raw UTF-8 source without decoding or parsing it.
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeSource(OutputStream out) throws IOException
+	{
+		if(sourceBuf != null)
+		{
+			out.write(sourceBuf, sourceOffset, sourceLength);
+		}
+		else
+		{
+			String str = getSource();
+			if(str != null) out.write(str.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * Returns the source as a JODD json object, parsing the source on first use.
+	 * 
+	 * @return
+	 */
 	public JsonObject getSourceObject()
 	{
+		if(obj == null && (source != null || sourceBuf != null))
+		{
+			obj = JsonParser.create().parseAsJsonObject(getSource());
+		}
 		return obj;
 	}
 
@@ -81,4 +197,48 @@ public class SearchHit
 	{
 		obj = json;
 	}
+
+	/**
+	 * A copy of the hit that shares the response bytes but not the decoded source object.
+	 * 
+	 * @return
+	 */
+	public SearchHit copy()
+	{
+		SearchHit hit = new SearchHit();
+		hit.score = score;
+		hit.id = id;
+		hit.sort = sort;
+		hit.source = source;
+		hit.sourceBuf = sourceBuf;
+		hit.sourceOffset = sourceOffset;
+		hit.sourceLength = sourceLength;
+
+		if(obj != null && source == null && sourceBuf == null)
+		{
+			// the object is the only copy of the source, so the copy parses its own from json
+			hit.source = obj.toString();
+		}
+
+		return hit;
+	}
+
+	/**
+	 * Bind the source to an instance of the class, reading the response bytes directly when
+	 * the source hasn't been decoded.
+	 * 
+	 * @param cls
+	 * @return
+	 */
+	public <T> T getSource(Class<T> cls)
+	{
+		if(sourceBuf != null)
+		{
+			return DocBinder.forClass(cls).bind(sourceBuf, sourceOffset, sourceLength);
+		}
+
+		byte buf[] = getSourceBytes();
+		if(buf == null) return null;
+		return DocBinder.forClass(cls).bind(buf);
+	}
 }
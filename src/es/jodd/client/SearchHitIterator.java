@@ -0,0 +1,435 @@
+package es.jodd.client;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import jodd.http.HttpRequest;
+import jodd.http.HttpResponse;
+
+/**
+ * Iterates over every hit of a query, a page at a time, using search_after over a point in
+ * time.  Clusters without point in time support, or without the _shard_doc sort it is paged
+ * on, fall back to a scroll.  The next page is fetched in the background while the caller
+ * works through the current one, so only two pages are ever held in memory.  Close the
+ * iterator, or read it to the end, to release the point in time or scroll on the server.
+ *
+ * @author aholinch
+ *
+ */
+public class SearchHitIterator implements Iterator<SearchHit>, AutoCloseable
+{
+	protected ElasticClient client;
+
+	protected String index;
+
+	/**
+	 * The query clause, e.g. {"match_all":{}}.
+	 */
+	protected String query;
+
+	protected int pageSize;
+
+	/**
+	 * How long the server keeps the point in time or scroll alive between pages.
+	 */
+	protected String keepAlive = "1m";
+
+	/**
+	 * Extra clauses added to every page request, e.g. a slice.
+	 */
+	protected String extraClauses = null;
+
+	private volatile String pitID = null;
+
+	private volatile String scrollID = null;
+
+	/**
+	 * True if the point in time was opened, or found missing, elsewhere and is not closed with the
+	 * iterator.
+	 */
+	private boolean sharedPit = false;
+
+	private final ExecutorService prefetcher;
+
+	private Future<SearchResults> pending = null;
+
+	private SearchHit page[] = null;
+
+	private int pos = 0;
+
+	private boolean done = false;
+
+	private boolean closed = false;
+
+	/**
+	 * Java logger.
+	 */
+	private static final Logger logger = Logger.getLogger(SearchHitIterator.class.getName());
+
+	/**
+	 * Create the iterator, call open before using it.
+	 *
+	 * @param client
+	 * @param index
+	 * @param query the query clause, null for match_all
+	 * @param pageSize
+	 */
+	public SearchHitIterator(ElasticClient client, String index, String query, int pageSize)
+	{
+		if(query == null) query = "{\"match_all\":{}}";
+		if(pageSize < 1) pageSize = 1000;
+
+		this.client = client;
+		this.index = index;
+		this.query = query;
+		this.pageSize = pageSize;
+
+		prefetcher = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "elastic-scan-prefetch");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	public void setKeepAlive(String str)
+	{
+		keepAlive = str;
+	}
+
+	public String getKeepAlive()
+	{
+		return keepAlive;
+	}
+
+	/**
+	 * Extra top level clauses, without braces, added to every page request.
+	 *
+	 * @param json
+	 */
+	public void setExtraClauses(String json)
+	{
+		extraClauses = json;
+	}
+
+	/**
+	 * Page over a point in time opened elsewhere, e.g. one shared by the slices of a scan.  The
+	 * iterator does not close it, that is left to whoever opened it.
+	 *
+	 * @param id the point in time, or null to go straight to a scroll
+	 */
+	public void setPitID(String id)
+	{
+		pitID = id;
+		sharedPit = true;
+	}
+
+	/**
+	 * True if paging uses a scroll instead of a point in time.
+	 *
+	 * @return
+	 */
+	public boolean isScroll()
+	{
+		return pitID == null;
+	}
+
+	/**
+	 * Open a point in time, or fall back to a scroll, and fetch the first page.
+	 *
+	 * @throws ECException
+	 */
+	public void open() throws ECException
+	{
+		if(!sharedPit)
+		{
+			pitID = openPointInTime(client, index, keepAlive);
+		}
+
+		SearchResults res = null;
+		try
+		{
+			try
+			{
+				res = fetch(null);
+			}
+			catch(ECException ex)
+			{
+				// point in time came in 7.10 but sorting on _shard_doc only in 7.12
+				if(pitID == null || !isShardDocMissing(ex)) throw ex;
+
+				logger.info("Sorting on _shard_doc not available, using scroll");
+				if(!sharedPit) releasePointInTime();
+				pitID = null;
+				res = fetch(null);
+			}
+		}
+		catch(ECException | RuntimeException ex)
+		{
+			// don't leave the point in time or scroll open on the server
+			close();
+			throw ex;
+		}
+		setPage(res);
+		prefetch();
+	}
+
+	@Override
+	public boolean hasNext()
+	{
+		if(page != null && pos < page.length) return true;
+		if(done)
+		{
+			close();
+			return false;
+		}
+
+		SearchResults res = null;
+		try
+		{
+			res = pending.get();
+		}
+		catch(InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			close();
+			throw new IllegalStateException("Interrupted waiting for next page", ex);
+		}
+		catch(ExecutionException ex)
+		{
+			close();
+			throw new IllegalStateException("Error fetching next page", ex.getCause());
+		}
+
+		setPage(res);
+		prefetch();
+
+		return page != null && pos < page.length;
+	}
+
+	@Override
+	public SearchHit next()
+	{
+		if(!hasNext())
+		{
+			throw new NoSuchElementException();
+		}
+		return page[pos++];
+	}
+
+	/**
+	 * Wrap the iterator in a sequential stream that closes it when the stream is closed.
+	 *
+	 * @return
+	 */
+	public Stream<SearchHit> stream()
+	{
+		Spliterator<SearchHit> sp = Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL);
+		return StreamSupport.stream(sp, false).onClose(this::close);
+	}
+
+	/**
+	 * Stop prefetching and release the point in time or scroll.
+	 */
+	@Override
+	public synchronized void close()
+	{
+		if(closed) return;
+		closed = true;
+		done = true;
+
+		if(pending != null)
+		{
+			pending.cancel(true);
+		}
+		prefetcher.shutdownNow();
+
+		try
+		{
+			if(pitID != null)
+			{
+				if(!sharedPit) closePointInTime(client, pitID);
+			}
+			else if(scrollID != null)
+			{
+				HttpRequest req = HttpRequest.delete(client.getBaseURL() + "_search/scroll");
+				client.sendJson(req, "{\"scroll_id\":\"" + scrollID + "\"}", "clear scroll");
+			}
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.WARNING, "Error releasing search context", ex);
+		}
+	}
+
+	/**
+	 * Open a point in time on the index.
+	 *
+	 * @param client
+	 * @param index
+	 * @param keepAlive
+	 * @return the id, or null if the cluster has no point in time support
+	 * @throws ECException for any other failure, e.g. a missing index or no permission
+	 */
+	static String openPointInTime(ElasticClient client, String index, String keepAlive) throws ECException
+	{
+		try
+		{
+			HttpRequest req = HttpRequest.post(client.getBaseURL() + index + "/_pit?keep_alive=" + keepAlive);
+			HttpResponse resp = client.sendJson(req, null, "open point in time");
+			return JsonPullParser.readTopLevelString(resp.bodyBytes(), "id");
+		}
+		catch(ECException ex)
+		{
+			if(!isMissingPitEndpoint(ex)) throw ex;
+
+			// older clusters and opensearch 1.x don't have _pit
+			logger.info("Point in time not available, using scroll: " + ex.getHttpStatus());
+			return null;
+		}
+	}
+
+	/**
+	 * True if the error says the cluster has no _pit endpoint rather than that the request was
+	 * bad.  Such a cluster answers with a 404 that isn't about the index, or a 400 or 405 for
+	 * treating _pit as a type or doc id.
+	 */
+	private static boolean isMissingPitEndpoint(ECException ex)
+	{
+		String body = ex.getResponseBody();
+		switch(ex.getHttpStatus())
+		{
+			case 404:
+				return body == null || !body.contains("index_not_found_exception");
+			case 405:
+				return true;
+			case 400:
+				// a bad keep_alive is our mistake, not a missing endpoint
+				return body == null || !body.contains("keep_alive");
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * True if the cluster rejected the _shard_doc sort used to page a point in time.
+	 */
+	private static boolean isShardDocMissing(ECException ex)
+	{
+		String body = ex.getResponseBody();
+		return ex.getHttpStatus() == 400 && body != null && body.contains("_shard_doc");
+	}
+
+	private void releasePointInTime()
+	{
+		try
+		{
+			closePointInTime(client, pitID);
+		}
+		catch(Exception ex)
+		{
+			logger.log(Level.WARNING, "Error closing point in time", ex);
+		}
+	}
+
+	/**
+	 * Close a point in time.
+	 *
+	 * @param client
+	 * @param id
+	 * @throws ECException
+	 */
+	static void closePointInTime(ElasticClient client, String id) throws ECException
+	{
+		HttpRequest req = HttpRequest.delete(client.getBaseURL() + "_pit");
+		client.sendJson(req, "{\"id\":\"" + id + "\"}", "close point in time");
+	}
+
+	private void setPage(SearchResults res)
+	{
+		page = res == null ? null : res.getHits();
+		pos = 0;
+
+		if(page == null || page.length == 0)
+		{
+			// the last page, nothing left to fetch
+			page = null;
+			close();
+		}
+		else if(page.length < pageSize)
+		{
+			done = true;
+			prefetcher.shutdown();
+		}
+	}
+
+	private void prefetch()
+	{
+		if(done || closed) return;
+
+		final SearchHit last = page[page.length-1];
+		pending = prefetcher.submit(() -> fetch(last));
+	}
+
+	/**
+	 * Fetch the page after the given hit, or the first page when it is null.
+	 */
+	protected SearchResults fetch(SearchHit last) throws ECException
+	{
+		String url = null;
+		StringBuilder body = new StringBuilder(256);
+
+		if(pitID != null)
+		{
+			url = client.getBaseURL() + "_search";
+			body.append("{\"size\":").append(pageSize);
+			body.append(",\"query\":").append(query);
+			body.append(",\"pit\":{\"id\":\"").append(pitID).append("\",\"keep_alive\":\"").append(keepAlive).append("\"}");
+			body.append(",\"sort\":[{\"_shard_doc\":\"asc\"}],\"track_total_hits\":false");
+			if(last != null)
+			{
+				body.append(",\"search_after\":").append(last.getSortValues());
+			}
+			if(extraClauses != null)
+			{
+				body.append(',').append(extraClauses);
+			}
+			body.append('}');
+		}
+		else if(last == null)
+		{
+			url = client.getBaseURL() + index + "/_search?scroll=" + keepAlive;
+			body.append("{\"size\":").append(pageSize);
+			body.append(",\"query\":").append(query);
+			body.append(",\"sort\":[\"_doc\"]");
+			if(extraClauses != null)
+			{
+				body.append(',').append(extraClauses);
+			}
+			body.append('}');
+		}
+		else
+		{
+			url = client.getBaseURL() + "_search/scroll";
+			body.append("{\"scroll\":\"").append(keepAlive).append("\",\"scroll_id\":\"").append(scrollID).append("\"}");
+		}
+
+		HttpResponse resp = client.sendJson(HttpRequest.get(url), body.toString(), "scan page");
+		SearchResults res = SearchResponseParser.parse(resp.bodyBytes(), pageSize);
+
+		// the ids can change from page to page
+		if(res.getPitID() != null) pitID = res.getPitID();
+		if(res.getScrollID() != null) scrollID = res.getScrollID();
+
+		return res;
+	}
+}
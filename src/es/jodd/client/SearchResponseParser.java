@@ -0,0 +1,263 @@
+package es.jodd.client;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads _search and _count responses straight from the response bytes.  Only total,
+ * max_score and each hit's _id and _score are decoded; each _source is left as a slice
+ * of the response bytes for the SearchHit to decode or parse when it is asked for.
+ *
+ * @author aholinch
+ *
+ */
+public class SearchResponseParser
+{
+	private static final byte HITS[] = ascii("hits");
+	private static final byte TOTAL[] = ascii("total");
+	private static final byte VALUE[] = ascii("value");
+	private static final byte MAX_SCORE[] = ascii("max_score");
+	private static final byte ID[] = ascii("_id");
+	private static final byte SCORE[] = ascii("_score");
+	private static final byte SOURCE[] = ascii("_source");
+	private static final byte COUNT[] = ascii("count");
+	private static final byte SORT[] = ascii("sort");
+	private static final byte PIT_ID[] = ascii("pit_id");
+	private static final byte SCROLL_ID[] = ascii("_scroll_id");
+	private static final byte RESPONSES[] = ascii("responses");
+	private static final byte ERROR[] = ascii("error");
+	private static final byte STATUS[] = ascii("status");
+	private static final byte TYPE[] = ascii("type");
+	private static final byte REASON[] = ascii("reason");
+
+	/**
+	 * Parse a whole response.
+	 *
+	 * @param buf
+	 * @param maxHits
+	 * @return
+	 */
+	public static SearchResults parse(byte buf[], int maxHits)
+	{
+		return parse(new JsonPullParser(buf), buf, maxHits);
+	}
+
+	/**
+	 * Parse the response object starting at the parser's position.
+	 *
+	 * @param p
+	 * @param buf the buffer the parser reads
+	 * @param maxHits
+	 * @return
+	 */
+	public static SearchResults parse(JsonPullParser p, byte buf[], int maxHits)
+	{
+		SearchResults res = new SearchResults();
+		int errorStart = -1;
+		int errorEnd = 0;
+		int status = 0;
+
+		p.beginObject();
+		while(p.nextField())
+		{
+			if(p.fieldIs(HITS))
+			{
+				readHits(p, buf, res, maxHits);
+			}
+			else if(p.fieldIs(COUNT))
+			{
+				res.setTotal(p.readLong());
+			}
+			else if(p.fieldIs(PIT_ID))
+			{
+				res.setPitID(p.readString());
+			}
+			else if(p.fieldIs(SCROLL_ID))
+			{
+				res.setScrollID(p.readString());
+			}
+			else if(p.fieldIs(ERROR))
+			{
+				errorStart = p.skipValue();
+				errorEnd = p.position();
+			}
+			else if(p.fieldIs(STATUS))
+			{
+				status = (int)p.readLong();
+			}
+			else
+			{
+				p.skipValue();
+			}
+		}
+
+		if(errorStart >= 0)
+		{
+			res.setError(error(buf, errorStart, errorEnd, status));
+		}
+
+		return res;
+	}
+
+	/**
+	 * Parse an _msearch response, one SearchResults per search in order.
+	 *
+	 * @param buf
+	 * @param maxHits the number of hits to parse for each search
+	 * @return
+	 */
+	public static List<SearchResults> parseMulti(byte buf[], int maxHits[])
+	{
+		List<SearchResults> list = new ArrayList<SearchResults>(maxHits.length);
+
+		JsonPullParser p = new JsonPullParser(buf);
+		p.beginObject();
+		while(p.nextField())
+		{
+			if(p.fieldIs(RESPONSES))
+			{
+				p.beginArray();
+				while(p.nextElement())
+				{
+					list.add(parse(p, buf, list.size() < maxHits.length ? maxHits[list.size()] : 0));
+				}
+			}
+			else
+			{
+				p.skipValue();
+			}
+		}
+
+		return list;
+	}
+
+	/**
+	 * Build the exception for a failed search from its error object.
+	 */
+	private static ECException error(byte buf[], int start, int end, int status)
+	{
+		String type = null;
+		String reason = null;
+
+		JsonPullParser p = new JsonPullParser(buf, start, end-start);
+		if(p.peek() == '"')
+		{
+			// old versions send the error as a string
+			reason = p.readString();
+		}
+		else
+		{
+			p.beginObject();
+			while(p.nextField())
+			{
+				if(p.fieldIs(TYPE)) type = p.readString();
+				else if(p.fieldIs(REASON)) reason = p.readString();
+				else p.skipValue();
+			}
+		}
+
+		String msg = reason;
+		if(type != null) msg = type + ": " + reason;
+
+		ECException ec = new ECException(msg);
+		ec.setHttpStatus(status);
+		ec.setResponseBody(new String(buf, start, end-start, StandardCharsets.UTF_8));
+		return ec;
+	}
+
+	private static void readHits(JsonPullParser p, byte buf[], SearchResults res, int maxHits)
+	{
+		List<SearchHit> hits = null;
+		double maxScore = 0;
+
+		p.beginObject();
+		while(p.nextField())
+		{
+			if(p.fieldIs(TOTAL))
+			{
+				// total used to be a simple integer but is now an object with a value
+				if(p.peek() == '{')
+				{
+					p.beginObject();
+					while(p.nextField())
+					{
+						if(p.fieldIs(VALUE)) res.setTotal(p.readLong());
+						else p.skipValue();
+					}
+				}
+				else
+				{
+					res.setTotal(p.readLong());
+				}
+			}
+			else if(p.fieldIs(MAX_SCORE))
+			{
+				maxScore = p.readDouble();
+			}
+			else if(p.fieldIs(HITS) && maxHits > 0)
+			{
+				hits = new ArrayList<SearchHit>();
+				p.beginArray();
+				while(p.nextElement())
+				{
+					hits.add(readHit(p, buf));
+				}
+			}
+			else
+			{
+				p.skipValue();
+			}
+		}
+
+		// total is left out when track_total_hits is false
+		if(hits != null && (res.getTotal() > 0 || hits.size() > 0))
+		{
+			res.setMaxScore(Double.isNaN(maxScore) ? 0 : maxScore);
+			res.setHits(hits.toArray(new SearchHit[hits.size()]));
+		}
+	}
+
+	private static SearchHit readHit(JsonPullParser p, byte buf[])
+	{
+		SearchHit hit = new SearchHit();
+
+		int start = 0;
+		double score = 0;
+
+		p.beginObject();
+		while(p.nextField())
+		{
+			if(p.fieldIs(ID))
+			{
+				hit.setID(p.readString());
+			}
+			else if(p.fieldIs(SCORE))
+			{
+				score = p.readDouble();
+				if(!Double.isNaN(score)) hit.setScore(score);
+			}
+			else if(p.fieldIs(SORT))
+			{
+				start = p.skipValue();
+				hit.setSortValues(new String(buf, start, p.position()-start, StandardCharsets.UTF_8));
+			}
+			else if(p.fieldIs(SOURCE))
+			{
+				start = p.skipValue();
+				hit.setSourceBytes(buf, start, p.position()-start);
+			}
+			else
+			{
+				p.skipValue();
+			}
+		}
+
+		return hit;
+	}
+
+	private static byte[] ascii(String str)
+	{
+		return str.getBytes(StandardCharsets.US_ASCII);
+	}
+}
@@ -1,5 +1,8 @@
 package es.jodd.client;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * ElasticSearch search results holds a list of search hits.
  * 
@@ -23,6 +26,21 @@ public class SearchResults
 	 */
 	protected SearchHit hits[];
 
+	/**
+	 * The point in time id returned with the page, if any.
+	 */
+	protected String pitID;
+
+	/**
+	 * The scroll id returned with the page, if any.
+	 */
+	protected String scrollID;
+
+	/**
+	 * Why the search failed, for a search sent in a multi search.
+	 */
+	protected ECException error;
+
 	/**
 	 * Default constructor.
 	 */
@@ -90,4 +108,122 @@ public class SearchResults
 	{
 		hits = hitArray;
 	}
+
+	/**
+	 * Bind the source of each hit to an instance of the class, in hit order.
+	 * 
+	 * @param cls
+	 * @return
+	 */
+	public <T> List<T> getSources(Class<T> cls)
+	{
+		if(hits == null) return new ArrayList<T>();
+
+		DocBinder<T> binder = DocBinder.forClass(cls);
+		List<T> list = new ArrayList<T>(hits.length);
+		for(int i=0; i<hits.length; i++)
+		{
+			if(hits[i].sourceBuf != null)
+			{
+				list.add(binder.bind(hits[i].sourceBuf, hits[i].sourceOffset, hits[i].sourceLength));
+			}
+			else
+			{
+				list.add(hits[i].getSource(cls));
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Return the point in time id.
+	 * 
+	 * @return
+	 */
+	public String getPitID()
+	{
+		return pitID;
+	}
+
+	/**
+	 * Set the point in time id.
+	 * 
+	 * @param id
+	 */
+	public void setPitID(String id)
+	{
+		pitID = id;
+	}
+
+	/**
+	 * Return the scroll id.
+	 * 
+	 * @return
+	 */
+	public String getScrollID()
+	{
+		return scrollID;
+	}
+
+	/**
+	 * Set the scroll id.
+	 * 
+	 * @param id
+	 */
+	public void setScrollID(String id)
+	{
+		scrollID = id;
+	}
+
+	/**
+	 * Returns the error if this search of a multi search failed, otherwise null.
+	 * 
+	 * @return
+	 */
+	public ECException getError()
+	{
+		return error;
+	}
+
+	public void setError(ECException ex)
+	{
+		error = ex;
+	}
+
+	/**
+	 * True if this search of a multi search failed.
+	 * 
+	 * @return
+	 */
+	public boolean isFailed()
+	{
+		return error != null;
+	}
+
+	/**
+	 * A copy with copies of the hits, for handing one response to several callers.  The hits
+	 * share the response bytes, which are never changed, but decode their sources separately.
+	 * 
+	 * @return
+	 */
+	public SearchResults copy()
+	{
+		SearchResults res = new SearchResults();
+		res.total = total;
+		res.maxScore = maxScore;
+		res.pitID = pitID;
+		res.scrollID = scrollID;
+		res.error = error;
+
+		if(hits != null)
+		{
+			res.hits = new SearchHit[hits.length];
+			for(int i=0; i<hits.length; i++)
+			{
+				res.hits[i] = hits[i] == null ? null : hits[i].copy();
+			}
+		}
+
+		return res;
+	}
 }
@@ -0,0 +1,340 @@
+package es.jodd.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Scans every hit of a query by splitting it into slices that are paged on their own worker
+ * threads.  The slices share one point in time, or each gets its own scroll on older
+ * clusters, and page through it with a SearchHitIterator that prefetches one page ahead.
+ * Hits are either handed to a callback on the worker threads or merged into a single stream
+ * through a bounded queue; in both cases a slow consumer holds the workers back instead of
+ * letting pages pile up in memory.
+ *
+ * @author aholinch
+ *
+ */
+public class SlicedScan implements AutoCloseable
+{
+	/**
+	 * Marks the end of a slice in the merge queue.
+	 */
+	private static final SearchHit END = new SearchHit();
+
+	protected ElasticClient client;
+
+	protected String index;
+
+	protected String query;
+
+	protected int pageSize;
+
+	protected int slices;
+
+	/**
+	 * How long the server keeps the point in time or scrolls alive between pages.
+	 */
+	protected String keepAlive = "1m";
+
+	/**
+	 * The point in time shared by the slices, null when they scroll.
+	 */
+	private String pitID = null;
+
+	private ExecutorService workers = null;
+
+	private final List<SearchHitIterator> iterators = new ArrayList<SearchHitIterator>();
+
+	private volatile boolean closed = false;
+
+	private volatile Throwable failure = null;
+
+	/**
+	 * Java logger.
+	 */
+	private static final Logger logger = Logger.getLogger(SlicedScan.class.getName());
+
+	/**
+	 * Constructor.
+	 *
+	 * @param client
+	 * @param index
+	 * @param query the query clause, null for match_all
+	 * @param pageSize hits per page in each slice
+	 * @param slices number of slices and worker threads
+	 */
+	public SlicedScan(ElasticClient client, String index, String query, int pageSize, int slices)
+	{
+		if(slices < 1) slices = 1;
+
+		this.client = client;
+		this.index = index;
+		this.query = query;
+		this.pageSize = pageSize;
+		this.slices = slices;
+	}
+
+	public int getSlices()
+	{
+		return slices;
+	}
+
+	public void setKeepAlive(String str)
+	{
+		keepAlive = str;
+	}
+
+	public String getKeepAlive()
+	{
+		return keepAlive;
+	}
+
+	/**
+	 * Hand every hit to the consumer, calling it from the worker threads, and wait until all
+	 * slices are done.  The consumer must be thread safe.
+	 *
+	 * @param consumer
+	 * @return the number of hits
+	 * @throws ECException
+	 */
+	public long forEach(final Consumer<SearchHit> consumer) throws ECException
+	{
+		final AtomicLong cnt = new AtomicLong();
+
+		List<Future<?>> futures = start(it -> {
+			while(!closed && it.hasNext())
+			{
+				consumer.accept(it.next());
+				cnt.incrementAndGet();
+			}
+		}, null);
+
+		try
+		{
+			for(Future<?> f : futures)
+			{
+				f.get();
+			}
+		}
+		catch(InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new ECException("Interrupted waiting for sliced scan", ex);
+		}
+		catch(ExecutionException ex)
+		{
+			throw asECException(ex.getCause());
+		}
+		finally
+		{
+			close();
+		}
+
+		return cnt.get();
+	}
+
+	/**
+	 * Merge the slices into a single stream.  Workers block when the queue, which holds one page
+	 * per slice, is full.  Close the stream to stop the scan early.
+	 *
+	 * @return
+	 * @throws ECException
+	 */
+	public Stream<SearchHit> stream() throws ECException
+	{
+		final BlockingQueue<SearchHit> queue = new ArrayBlockingQueue<SearchHit>(Math.max(16, pageSize*slices));
+
+		start(it -> {
+			while(!closed && it.hasNext())
+			{
+				queue.put(it.next());
+			}
+		}, () -> queue.put(END));
+
+		final AtomicInteger finished = new AtomicInteger();
+
+		Spliterator<SearchHit> sp = new Spliterators.AbstractSpliterator<SearchHit>(Long.MAX_VALUE, Spliterator.NONNULL)
+		{
+			@Override
+			public boolean tryAdvance(Consumer<? super SearchHit> action)
+			{
+				SearchHit hit = null;
+				while(finished.get() < slices)
+				{
+					try
+					{
+						hit = queue.take();
+					}
+					catch(InterruptedException ex)
+					{
+						Thread.currentThread().interrupt();
+						close();
+						throw new IllegalStateException("Interrupted waiting for hits", ex);
+					}
+
+					if(hit != END)
+					{
+						action.accept(hit);
+						return true;
+					}
+
+					finished.incrementAndGet();
+				}
+
+				Throwable t = failure;
+				close();
+				if(t != null)
+				{
+					throw new IllegalStateException("Sliced scan failed", t);
+				}
+				return false;
+			}
+		};
+
+		return StreamSupport.stream(sp, false).onClose(this::close);
+	}
+
+	/**
+	 * Stop the workers and release the point in time or every slice's scroll.
+	 */
+	@Override
+	public void close()
+	{
+		if(closed) return;
+		closed = true;
+
+		if(workers != null)
+		{
+			workers.shutdownNow();
+		}
+
+		synchronized(iterators)
+		{
+			for(SearchHitIterator it : iterators)
+			{
+				it.close();
+			}
+			iterators.clear();
+		}
+
+		if(pitID != null)
+		{
+			try
+			{
+				SearchHitIterator.closePointInTime(client, pitID);
+			}
+			catch(Exception ex)
+			{
+				logger.log(Level.WARNING, "Error closing point in time", ex);
+			}
+			pitID = null;
+		}
+	}
+
+	/**
+	 * Open the point in time and run the body for each slice on its own thread.  The end runs
+	 * once each slice is done, whether it finished, failed or never opened.
+	 */
+	private List<Future<?>> start(final SliceBody body, final SliceEnd end) throws ECException
+	{
+		pitID = SearchHitIterator.openPointInTime(client, index, keepAlive);
+
+		final AtomicInteger cnt = new AtomicInteger();
+		workers = Executors.newFixedThreadPool(slices, r -> {
+			Thread t = new Thread(r, "elastic-slice-" + cnt.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+
+		List<Future<?>> futures = new ArrayList<Future<?>>(slices);
+
+		for(int i=0; i<slices; i++)
+		{
+			final SearchHitIterator it = new SearchHitIterator(client, index, query, pageSize);
+			it.setKeepAlive(keepAlive);
+			it.setPitID(pitID);
+			if(slices > 1)
+			{
+				it.setExtraClauses("\"slice\":{\"id\":" + i + ",\"max\":" + slices + "}");
+			}
+
+			synchronized(iterators)
+			{
+				iterators.add(it);
+			}
+
+			futures.add(workers.submit(() -> {
+				try
+				{
+					it.open();
+					body.run(it);
+				}
+				catch(Exception ex)
+				{
+					if(!closed)
+					{
+						logger.log(Level.WARNING, "Error scanning slice", ex);
+						if(failure == null) failure = ex;
+					}
+					throw ex;
+				}
+				finally
+				{
+					it.close();
+					if(end != null && !closed)
+					{
+						try
+						{
+							end.run();
+						}
+						catch(InterruptedException ex)
+						{
+							Thread.currentThread().interrupt();
+						}
+					}
+				}
+				return null;
+			}));
+		}
+
+		return futures;
+	}
+
+	private static ECException asECException(Throwable t)
+	{
+		if(t instanceof ECException) return (ECException)t;
+		if(t.getCause() instanceof ECException) return (ECException)t.getCause();
+		return new ECException("Sliced scan failed", t);
+	}
+
+	/**
+	 * The work done with one slice's iterator.
+	 */
+	private interface SliceBody
+	{
+		void run(SearchHitIterator it) throws Exception;
+	}
+
+	/**
+	 * Run when a slice is done.
+	 */
+	private interface SliceEnd
+	{
+		void run() throws InterruptedException;
+	}
+}